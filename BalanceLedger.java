@@ -0,0 +1,107 @@
+package blockchain;
+
+import blockchain.user.User;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Running balance index keyed by user id. Committed deltas are folded in once
+// per submitted block, pending deltas cover the unprocessed block and the
+// mempool, so a lookup never has to walk the chain.
+
+class BalanceLedger {
+    private final Map<Long, Integer> committed;
+    private final Map<Long, Integer> pending;
+
+    BalanceLedger() {
+        committed = new HashMap<>();
+        pending = new HashMap<>();
+    }
+
+    synchronized int getBalance(User user, int seed) {
+        long id = user.getId();
+        return seed + committed.getOrDefault(id, 0) + pending.getOrDefault(id, 0);
+    }
+
+    // Balance as of the last committed block, ignoring the mempool
+    synchronized int getCommittedBalance(long userId, int seed) {
+        return seed + committed.getOrDefault(userId, 0);
+    }
+
+    // Check the sender's balance and book the transaction as pending in one step
+    synchronized boolean tryAddPending(Transaction transaction, int seed) {
+        if (transaction.getAmount() > getBalance(transaction.getFrom(), seed)) { return false; }
+        applyTransaction(pending, transaction, 1);
+        return true;
+    }
+
+    // Undo the booking of a transaction that never made it into the mempool or expired there
+    synchronized void revertPending(Transaction transaction) {
+        applyTransaction(pending, transaction, -1);
+    }
+
+    // Move the block's transactions from pending to committed and credit the miner
+    synchronized void commitBlock(Block block) {
+        commit(block, true);
+    }
+
+    // Commit a block read back from storage, its transactions were never booked as pending
+    synchronized void commitStoredBlock(Block block) {
+        commit(block, false);
+    }
+
+    // Commit a block from a peer; only the transactions this node had queued were booked as pending
+    synchronized void commitBlock(Block block, boolean[] wasPending) {
+        if (block.getMiner() != null) {
+            committed.merge(block.getMiner().getId(), block.getMineReward(), BalanceLedger::sumOrDrop);
+        }
+        List<Transaction> transactions = block.getTransactions();
+        for (int i = 0; i < transactions.size(); i++) {
+            if (wasPending[i]) {
+                applyTransaction(pending, transactions.get(i), -1);
+            }
+            applyTransaction(committed, transactions.get(i), 1);
+        }
+    }
+
+    // Undo the commit of a block taken off the chain; its transactions are queued again as pending
+    synchronized void rollbackBlock(Block block) {
+        if (block.getMiner() != null) {
+            committed.merge(block.getMiner().getId(), -block.getMineReward(), BalanceLedger::sumOrDrop);
+        }
+        for (Transaction transaction : block.getTransactions()) {
+            applyTransaction(committed, transaction, -1);
+            applyTransaction(pending, transaction, 1);
+        }
+    }
+
+    private void commit(Block block, boolean wasPending) {
+        boolean[] flags = new boolean[block.getTransactions().size()];
+        Arrays.fill(flags, wasPending);
+        commitBlock(block, flags);
+    }
+
+    // Copy of the committed balances, for state snapshots
+    synchronized Map<Long, Integer> getCommittedBalances() {
+        return new HashMap<>(committed);
+    }
+
+    synchronized void restoreCommitted(Map<Long, Integer> balances) {
+        committed.clear();
+        committed.putAll(balances);
+    }
+
+    private static void applyTransaction(Map<Long, Integer> balances, Transaction transaction, int sign) {
+        int amount = sign * transaction.getAmount();
+        balances.merge(transaction.getFrom().getId(), -amount, BalanceLedger::sumOrDrop);
+        balances.merge(transaction.getTo().getId(), amount, BalanceLedger::sumOrDrop);
+    }
+
+    // Drop settled entries so the pending overlay stays as small as the mempool
+    private static Integer sumOrDrop(Integer a, Integer b) {
+        int sum = a + b;
+        return sum == 0 ? null : sum;
+    }
+}
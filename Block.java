@@ -1,6 +1,8 @@
 package blockchain;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import blockchain.user.Miner;
@@ -13,34 +15,66 @@ public class Block implements Serializable, Cloneable {
     private String prevBlockHash;
     private List<Transaction> transactions;
     private String hash;
-    private int magicNum;
+    private long magicNum;
     private long timeTookForMiningMs;
     private Miner miner;
     private int mineReward;
-    private String transactionsToStringCached;
+    private byte[] merkleRoot;
+    // Target the hash has to meet, see Target; a new block starts at the easiest one
+    private int bits = Target.MAX_BITS;
 
     // Initializing block
     private Block(final long id, final List<Transaction> transactions, final String prevBlockHash) {
+        this(id, transactions, prevBlockHash, System.currentTimeMillis());
+    }
+
+    private Block(final long id, final List<Transaction> transactions, final String prevBlockHash,
+            final long timestamp) {
         this.id = id;
         this.transactions = transactions;
         this.prevBlockHash = prevBlockHash;
-        timestamp = System.currentTimeMillis();
+        this.timestamp = timestamp;
     }
     //
     public static Block with(final long id, final List<Transaction> transactions, final String prevBlockHash,
             final int mineReward) {
         Block block = new Block(id, transactions, prevBlockHash);
-        block.transactionsToStringCached = block.transactions.stream().map(Transaction::toString).reduce("", String::concat);
+        block.merkleRoot = MerkleTree.root(block.transactions);
+        block.mineReward = mineReward;
+        return block;
+    }
+
+    // Same, stamped no earlier than notBefore, so a block never predates its parent
+    static Block with(final long id, final List<Transaction> transactions, final String prevBlockHash,
+            final int mineReward, final long notBefore) {
+        Block block = new Block(id, transactions, prevBlockHash, Math.max(System.currentTimeMillis(), notBefore));
+        block.merkleRoot = MerkleTree.root(block.transactions);
         block.mineReward = mineReward;
         return block;
     }
 
+    // Rebuilding a mined block read back from storage, the stored root is kept as is
+    static Block restore(final long id, final long timestamp, final List<Transaction> transactions,
+            final String prevBlockHash, final byte[] merkleRoot, final int mineReward) {
+        Block block = new Block(id, transactions, prevBlockHash, timestamp);
+        block.merkleRoot = merkleRoot;
+        block.mineReward = mineReward;
+        return block;
+    }
+
+    // Same header with the transaction bodies dropped, the stored root still commits to them
+    Block withoutTransactions() {
+        Block header = (Block) clone();
+        header.transactions = Collections.emptyList();
+        return header;
+    }
+
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder();
         str.append(prevBlockHash);
         str.append(id);
-        str.append(transactionsToStringCached);
+        str.append(StringUtils.bytesToHex(merkleRoot));
         str.append(timestamp);
         str.append(magicNum);
         str.append(miner);
@@ -94,6 +128,10 @@ public class Block implements Serializable, Cloneable {
             return false;
         }
 
+        if (bits != ((Block) obj).bits) {
+            return false;
+        }
+
         if (magicNum != ((Block) obj).magicNum) {
             return false;
         }
@@ -110,7 +148,7 @@ public class Block implements Serializable, Cloneable {
             return false;
         }
 
-        if (!this.transactionsToStringCached.equals(((Block) obj).transactionsToStringCached)) {
+        if (!Arrays.equals(this.merkleRoot, ((Block) obj).merkleRoot)) {
             return false;
         }
 
@@ -118,7 +156,11 @@ public class Block implements Serializable, Cloneable {
     }
     // Hash functions
     public boolean isConsistent() {
-        return hash.equals(StringUtils.applySha256(toString()));
+        return hash.equals(getHeader().hash(magicNum));
+    }
+
+    public BlockHeader getHeader() {
+        return BlockHeader.of(this);
     }
 
     public long getId() {
@@ -141,11 +183,11 @@ public class Block implements Serializable, Cloneable {
         this.hash = hash;
     }
 
-    public int getMagicNum() {
+    public long getMagicNum() {
         return magicNum;
     }
 
-    public void setMagicNum(int magicNum) {
+    public void setMagicNum(long magicNum) {
         this.magicNum = magicNum;
     }
 
@@ -169,8 +211,8 @@ public class Block implements Serializable, Cloneable {
         return transactions;
     }
 
-    public String getTransactionsToStringCached() {
-        return transactionsToStringCached;
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
     }
 
     public int getMineReward() {
@@ -180,4 +222,12 @@ public class Block implements Serializable, Cloneable {
     public void setMineReward(int mineReward) {
         this.mineReward = mineReward;
     }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public void setBits(int bits) {
+        this.bits = bits;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package blockchain;
+
+import java.util.Comparator;
+
+// Limits and transaction order for the blocks a node assembles from its mempool.
+// Whatever the backlog, a template holds at most maxTransactions transactions and
+// encodes to at most maxBytes, so building, hashing and committing a block cost
+// about the same under a burst as in a quiet period. The rest waits for later blocks.
+
+public final class BlockAssemblyPolicy {
+
+    public enum Selection {
+        // Oldest accepted transaction first
+        FIFO(Mempool.OLDEST_FIRST, false),
+        // Largest transfer first, each sender's transactions still in the order they came
+        LARGEST_AMOUNT_FIRST(Mempool.LARGEST_AMOUNT_FIRST, false),
+        // One transaction per sender in turn, oldest first within a round
+        SENDER_ROUND_ROBIN(Mempool.OLDEST_FIRST, true);
+
+        private final Comparator<Transaction> priority;
+        private final boolean roundRobin;
+
+        Selection(Comparator<Transaction> priority, boolean roundRobin) {
+            this.priority = priority;
+            this.roundRobin = roundRobin;
+        }
+
+        Comparator<Transaction> priority() { return priority; }
+
+        boolean isRoundRobin() { return roundRobin; }
+    }
+
+    public static final int DEFAULT_MAX_TRANSACTIONS = 2000;
+    public static final int DEFAULT_MAX_BYTES = 1 << 20;
+    public static final BlockAssemblyPolicy DEFAULT =
+            with(DEFAULT_MAX_TRANSACTIONS, DEFAULT_MAX_BYTES, Selection.FIFO);
+
+    private final int maxTransactions;
+    private final int maxBytes;
+    private final Selection selection;
+
+    private BlockAssemblyPolicy(int maxTransactions, int maxBytes, Selection selection) {
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
+        this.selection = selection;
+    }
+
+    public static BlockAssemblyPolicy with(int maxTransactions, int maxBytes, Selection selection) {
+        if (maxTransactions < 1) {
+            throw new IllegalArgumentException("A block must be able to hold a transaction: " + maxTransactions);
+        }
+        if (maxBytes <= BlockCodec.MAX_HEADER_SIZE) {
+            throw new IllegalArgumentException("Block size limit does not leave room for transactions: " + maxBytes);
+        }
+        if (maxBytes > BlockchainDriver.MAX_BLOCK_BYTES) {
+            throw new IllegalArgumentException("Block size limit is beyond what a log segment holds: " + maxBytes
+                    + " > " + BlockchainDriver.MAX_BLOCK_BYTES);
+        }
+        return new BlockAssemblyPolicy(maxTransactions, maxBytes, selection);
+    }
+
+    public int getMaxTransactions() { return maxTransactions; }
+
+    public int getMaxBytes() { return maxBytes; }
+
+    public Selection getSelection() { return selection; }
+
+    // Bytes left for transactions once the header is accounted for
+    int getTransactionBytes() { return maxBytes - BlockCodec.MAX_HEADER_SIZE; }
+
+    @Override
+    public String toString() {
+        return selection + ", at most " + maxTransactions + " transactions and " + maxBytes + " bytes per block";
+    }
+}
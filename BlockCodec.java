@@ -0,0 +1,134 @@
+package blockchain;
+
+import blockchain.user.Miner;
+import blockchain.user.User;
+import blockchain.utils.SignatureUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary record layout of a mined block in the block log. Users and miners are
+// written by id only; on the way back they are resolved to history accounts so
+// one id always maps to the same object within a replay.
+
+class BlockCodec {
+    private final Map<Long, User> users = new HashMap<>();
+    private final Map<Long, Miner> miners = new HashMap<>();
+
+    // Largest record size of a block without transactions: fixed fields, two 64 digit hashes,
+    // the merkle root and the transaction count
+    static final int MAX_HEADER_SIZE = 5 * Long.BYTES + 2 * (2 + 64) + 2 * Integer.BYTES + 32 + Integer.BYTES;
+
+    // Bytes a transaction adds to its block's record
+    static int encodedSize(Transaction transaction) {
+        int signatureLength = transaction.getSignature() == null ? 0 : transaction.getSignature().length;
+        return 4 * Long.BYTES + Integer.BYTES + 2 + signatureLength
+                + 2 + transaction.getPublicKey().getAlgorithm().length()
+                + 2 + transaction.getPublicKey().getEncoded().length;
+    }
+
+    static byte[] encode(Block block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(block.getId());
+        out.writeLong(block.getTimestamp());
+        out.writeUTF(block.getPrevBlockHash());
+        out.writeUTF(block.getHash());
+        out.writeLong(block.getMagicNum());
+        out.writeLong(block.getTimeTookForMiningMs());
+        out.writeLong(block.getMiner().getId());
+        out.writeInt(block.getMineReward());
+        out.writeInt(block.getBits());
+        out.write(block.getMerkleRoot());
+
+        out.writeInt(block.getTransactions().size());
+        for (Transaction transaction : block.getTransactions()) {
+            out.writeLong(transaction.getId());
+            out.writeLong(transaction.getFrom().getId());
+            out.writeLong(transaction.getTo().getId());
+            out.writeInt(transaction.getAmount());
+            out.writeLong(transaction.getCreationTime());
+            byte[] signature = transaction.getSignature() == null ? new byte[0] : transaction.getSignature();
+            out.writeShort(signature.length);
+            out.write(signature);
+            out.writeUTF(transaction.getPublicKey().getAlgorithm());
+            byte[] encodedKey = transaction.getPublicKey().getEncoded();
+            out.writeShort(encodedKey.length);
+            out.write(encodedKey);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    Block decode(byte[] record) throws IOException {
+        return decode(record, true);
+    }
+
+    // The block without its transaction bodies, which are not even parsed
+    Block decodeHeader(byte[] record) throws IOException {
+        return decode(record, false);
+    }
+
+    private Block decode(byte[] record, boolean withTransactions) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        long id = in.readLong();
+        long timestamp = in.readLong();
+        String prevBlockHash = in.readUTF();
+        String hash = in.readUTF();
+        long magicNum = in.readLong();
+        long timeTookForMiningMs = in.readLong();
+        long minerId = in.readLong();
+        int mineReward = in.readInt();
+        int bits = in.readInt();
+        byte[] merkleRoot = new byte[MerkleTree.HASH_SIZE];
+        in.readFully(merkleRoot);
+
+        int nTransactions = withTransactions ? in.readInt() : 0;
+        List<Transaction> transactions = new ArrayList<>(nTransactions);
+        for (int i = 0; i < nTransactions; i++) {
+            long transactionId = in.readLong();
+            User from = user(in.readLong());
+            User to = user(in.readLong());
+            int amount = in.readInt();
+            long creationTime = in.readLong();
+            byte[] signature = new byte[in.readUnsignedShort()];
+            in.readFully(signature);
+            String algorithm = in.readUTF();
+            byte[] encodedKey = new byte[in.readUnsignedShort()];
+            in.readFully(encodedKey);
+            transactions.add(Transaction.restore(transactionId, from, to, amount, publicKey(algorithm, encodedKey),
+                    creationTime, signature.length == 0 ? null : signature));
+        }
+
+        Block block = Block.restore(id, timestamp, transactions, prevBlockHash, merkleRoot, mineReward);
+        block.setHash(hash);
+        block.setMagicNum(magicNum);
+        block.setTimeTookForMiningMs(timeTookForMiningMs);
+        block.setBits(bits);
+        block.setMiner(miners.computeIfAbsent(minerId, Miner::restored));
+        return block;
+    }
+
+    private User user(long id) {
+        return users.computeIfAbsent(id, User::restored);
+    }
+
+    private static PublicKey publicKey(String algorithm, byte[] encodedKey) throws IOException {
+        try {
+            return SignatureUtils.forKeyAlgorithm(algorithm).decodePublicKey(encodedKey);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unreadable public key in block record", e);
+        }
+    }
+}
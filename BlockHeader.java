@@ -0,0 +1,90 @@
+package blockchain;
+
+import java.nio.ByteBuffer;
+
+import blockchain.utils.*;
+
+// Fixed-size binary header that the proof of work is computed over:
+//
+//   prevBlockHash (32) | transactions merkle root (32) <- first SHA-256 chunk
+//   id (8) | timestamp (8) | miner id (8) | reward (4) | target bits (4) | nonce (8)
+//
+// The first chunk never changes while a block is mined, so its SHA-256
+// midstate is computed once and every attempt only compresses the last chunk.
+
+public final class BlockHeader {
+    public static final int SIZE = 104;
+    private static final int PADDED_SIZE = 2 * Sha256.CHUNK_BYTES;
+    private static final int BITS_OFFSET = 92;
+    private static final int NONCE_OFFSET = 96;
+    private static final int NONCE_WORD = (NONCE_OFFSET - Sha256.CHUNK_BYTES) / 4;
+
+    private final byte[] bytes;
+    private final int[] midstate;
+    private final int[] lastChunk;
+
+    private BlockHeader(byte[] bytes) {
+        this.bytes = bytes;
+
+        int[] w = new int[64];
+        midstate = Sha256.initialState();
+        Sha256.loadChunk(bytes, 0, w);
+        Sha256.compress(midstate, w);
+
+        lastChunk = new int[16];
+        Sha256.loadChunk(bytes, Sha256.CHUNK_BYTES, w);
+        System.arraycopy(w, 0, lastChunk, 0, 16);
+    }
+
+    public static BlockHeader of(Block block) {
+        ByteBuffer buffer = ByteBuffer.allocate(PADDED_SIZE);
+        buffer.put(StringUtils.hexToBytes(block.getPrevBlockHash(), 32));
+        buffer.put(block.getMerkleRoot());
+        buffer.putLong(block.getId());
+        buffer.putLong(block.getTimestamp());
+        buffer.putLong(block.getMiner() == null ? 0L : block.getMiner().getId());
+        buffer.putInt(block.getMineReward());
+        buffer.putInt(block.getBits());
+        buffer.putLong(block.getMagicNum());
+        // SHA-256 padding: a single 1 bit, zeros, then the message length in bits
+        buffer.put((byte) 0x80);
+        buffer.putLong(PADDED_SIZE - Long.BYTES, (long) SIZE * 8);
+        return new BlockHeader(buffer.array());
+    }
+
+    // Target the hash has to meet, see Target
+    public int getBits() {
+        return ByteBuffer.wrap(bytes).getInt(BITS_OFFSET);
+    }
+
+    // Serialized header with the given nonce, without the hash padding
+    public byte[] toBytes(long nonce) {
+        byte[] out = new byte[SIZE];
+        System.arraycopy(bytes, 0, out, 0, SIZE);
+        ByteBuffer.wrap(out).putLong(NONCE_OFFSET, nonce);
+        return out;
+    }
+
+    public String hash(long nonce) {
+        return Sha256.toHex(newHasher().hash(nonce));
+    }
+
+    public Hasher newHasher() {
+        return new Hasher();
+    }
+
+    // Reusable per-thread hashing buffers; hash() allocates nothing
+    public final class Hasher {
+        private final int[] digest = new int[8];
+        private final int[] w = new int[64];
+
+        public int[] hash(long nonce) {
+            System.arraycopy(midstate, 0, digest, 0, 8);
+            System.arraycopy(lastChunk, 0, w, 0, 16);
+            w[NONCE_WORD] = (int) (nonce >>> 32);
+            w[NONCE_WORD + 1] = (int) nonce;
+            Sha256.compress(digest, w);
+            return digest;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package blockchain;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+// Persistent lookup from block height and block hash to a record in the BlockLog.
+//
+//   heights.idx  fixed 48 byte entries, entry N is block height N:
+//                [int segment][long offset][int length][32 byte block hash]
+//   hashes.idx   open addressing table: [long capacity][long count] then
+//                16 byte slots of [long hash prefix][long height + 1], 0 = empty
+//
+// Both lookups are a constant number of seeks. The index is derived data, so it
+// can always be truncated and rebuilt from a replay of the log.
+
+class BlockIndex implements Closeable {
+    static final int ENTRY_BYTES = 48;
+    private static final int HASH_BYTES = 32;
+    private static final int SLOT_BYTES = 16;
+    private static final int TABLE_HEADER_BYTES = 16;
+    private static final long INITIAL_CAPACITY = 1024;
+
+    private final File directory;
+    private final RandomAccessFile heights;
+    private RandomAccessFile hashes;
+    private long capacity;
+    private long count;
+
+    BlockIndex(File directory) throws IOException {
+        this.directory = directory;
+        heights = new RandomAccessFile(new File(directory, "heights.idx"), "rw");
+        heights.setLength(size() * ENTRY_BYTES);
+        openHashTable();
+    }
+
+    synchronized long size() throws IOException {
+        return heights.length() / ENTRY_BYTES;
+    }
+
+    synchronized void append(long height, BlockLog.Position position, byte[] hash) throws IOException {
+        if (height != size()) {
+            throw new IllegalStateException("Index expects height " + size() + " but got " + height);
+        }
+        if ((count + 1) * 2 > capacity) {
+            rebuildHashTable(capacity * 2);
+        }
+
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+        entry.putInt(position.segment);
+        entry.putLong(position.offset);
+        entry.putInt(position.length);
+        entry.put(hash);
+        heights.seek(height * ENTRY_BYTES);
+        heights.write(entry.array());
+        insertHash(hash, height);
+    }
+
+    synchronized BlockLog.Position positionOf(long height) throws IOException {
+        if (height < 0 || height >= size()) {
+            return null;
+        }
+        ByteBuffer entry = readEntry(height);
+        return new BlockLog.Position(entry.getInt(), entry.getLong(), entry.getInt());
+    }
+
+    // Hash of the block indexed at the height
+    synchronized byte[] hashOf(long height) throws IOException {
+        return hashAt(height);
+    }
+
+    // Height of the block with this hash, or -1 if it is not indexed
+    synchronized long heightOf(byte[] hash) throws IOException {
+        long prefix = ByteBuffer.wrap(hash).getLong();
+        for (long slot = slotOf(prefix); ; slot = (slot + 1) & (capacity - 1)) {
+            hashes.seek(TABLE_HEADER_BYTES + slot * SLOT_BYTES);
+            long storedPrefix = hashes.readLong();
+            long storedHeight = hashes.readLong() - 1;
+            if (storedHeight < 0) {
+                return -1;
+            }
+            if (storedPrefix == prefix && Arrays.equals(hashAt(storedHeight), hash)) {
+                return storedHeight;
+            }
+        }
+    }
+
+    // Forgets every entry from the given height on. Only the hash slots of those heights are
+    // cleared, so a reorg costs the blocks it removes, not the length of the chain.
+    synchronized void truncate(long length) throws IOException {
+        long size = size();
+        if (length >= size) {
+            return;
+        }
+        for (long height = size - 1; height >= length; height--) {
+            removeHash(hashAt(height), height);
+        }
+        hashes.seek(Long.BYTES);
+        hashes.writeLong(count);
+        heights.setLength(length * ENTRY_BYTES);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        heights.close();
+        hashes.close();
+    }
+
+    private ByteBuffer readEntry(long height) throws IOException {
+        byte[] entry = new byte[ENTRY_BYTES];
+        heights.seek(height * ENTRY_BYTES);
+        heights.readFully(entry);
+        return ByteBuffer.wrap(entry);
+    }
+
+    private byte[] hashAt(long height) throws IOException {
+        byte[] hash = new byte[HASH_BYTES];
+        readEntry(height).position(ENTRY_BYTES - HASH_BYTES).get(hash);
+        return hash;
+    }
+
+    private void insertHash(byte[] hash, long height) throws IOException {
+        long prefix = ByteBuffer.wrap(hash).getLong();
+        long slot = slotOf(prefix);
+        while (true) {
+            hashes.seek(TABLE_HEADER_BYTES + slot * SLOT_BYTES + Long.BYTES);
+            if (hashes.readLong() == 0) {
+                break;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        hashes.seek(TABLE_HEADER_BYTES + slot * SLOT_BYTES);
+        hashes.writeLong(prefix);
+        hashes.writeLong(height + 1);
+        count++;
+        hashes.seek(Long.BYTES);
+        hashes.writeLong(count);
+    }
+
+    // Clears the height's slot and shifts later slots of the same probe run back into the gap,
+    // so lookups never stop early at it
+    private void removeHash(byte[] hash, long height) throws IOException {
+        long slot = slotOf(ByteBuffer.wrap(hash).getLong());
+        while (true) {
+            hashes.seek(TABLE_HEADER_BYTES + slot * SLOT_BYTES + Long.BYTES);
+            long storedHeight = hashes.readLong() - 1;
+            if (storedHeight == height) { break; }
+            if (storedHeight < 0) { return; }
+            slot = (slot + 1) & (capacity - 1);
+        }
+
+        long gap = slot;
+        for (long next = (gap + 1) & (capacity - 1); ; next = (next + 1) & (capacity - 1)) {
+            hashes.seek(TABLE_HEADER_BYTES + next * SLOT_BYTES);
+            long prefix = hashes.readLong();
+            long heightPlusOne = hashes.readLong();
+            if (heightPlusOne == 0) { break; }
+
+            // An entry may only move back if its home slot is not between the gap and it
+            long home = slotOf(prefix);
+            boolean stays = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+            if (!stays) {
+                hashes.seek(TABLE_HEADER_BYTES + gap * SLOT_BYTES);
+                hashes.writeLong(prefix);
+                hashes.writeLong(heightPlusOne);
+                gap = next;
+            }
+        }
+        hashes.seek(TABLE_HEADER_BYTES + gap * SLOT_BYTES);
+        hashes.writeLong(0);
+        hashes.writeLong(0);
+        count--;
+    }
+
+    private long slotOf(long prefix) {
+        return (prefix ^ (prefix >>> 32)) & (capacity - 1);
+    }
+
+    private void openHashTable() throws IOException {
+        File file = new File(directory, "hashes.idx");
+        hashes = new RandomAccessFile(file, "rw");
+        if (hashes.length() < TABLE_HEADER_BYTES) {
+            rebuildHashTable(INITIAL_CAPACITY);
+            return;
+        }
+        capacity = hashes.readLong();
+        count = hashes.readLong();
+        if (capacity <= 0 || Long.bitCount(capacity) != 1) {
+            rebuildHashTable(INITIAL_CAPACITY);
+            return;
+        }
+        if (count != size() || hashes.length() != TABLE_HEADER_BYTES + capacity * SLOT_BYTES) {
+            rebuildHashTable(capacity);
+        }
+    }
+
+    // Writes a fresh table of the given capacity from heights.idx and swaps it in
+    private void rebuildHashTable(long minCapacity) throws IOException {
+        long entries = size();
+        long newCapacity = INITIAL_CAPACITY;
+        while (newCapacity < minCapacity || newCapacity < entries * 2) {
+            newCapacity *= 2;
+        }
+
+        File file = new File(directory, "hashes.idx");
+        File tmp = new File(directory, "hashes.idx.tmp");
+        if (hashes != null) {
+            hashes.close();
+        }
+        hashes = new RandomAccessFile(tmp, "rw");
+        hashes.setLength(0);
+        hashes.setLength(TABLE_HEADER_BYTES + newCapacity * SLOT_BYTES);
+        hashes.writeLong(newCapacity);
+        capacity = newCapacity;
+        count = 0;
+        for (long height = 0; height < entries; height++) {
+            insertHash(hashAt(height), height);
+        }
+        hashes.close();
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        hashes = new RandomAccessFile(file, "rw");
+    }
+}
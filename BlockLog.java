@@ -0,0 +1,282 @@
+package blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Append-only block store split into numbered segment files:
+//
+//   <dir>/blocks-00000.log, blocks-00001.log, ...
+//
+// Every record is [int length][int crc32][payload]. Appends only ever touch the
+// newest segment, which is rolled once it passes the size threshold. A torn
+// record at the end of the newest segment (crash mid-append) is cut off on replay;
+// a bad record anywhere else is corruption and fails the replay.
+
+class BlockLog implements Closeable {
+
+    interface RecordConsumer {
+        void accept(Position position, byte[] record) throws IOException;
+    }
+
+    // Where a record lives: segment number, offset of its header and payload length
+    static final class Position {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Position(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static final int RECORD_HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "blocks-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private int currentSegment;
+    private FileChannel current;
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+
+    BlockLog(File directory, long maxSegmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create block log directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        currentSegment = -1;
+        current = null;
+    }
+
+    // Feeds every stored record to the consumer in append order and opens the log for appending
+    void replay(RecordConsumer consumer) throws IOException {
+        replayFrom(-1, 0, consumer);
+    }
+
+    // Same, for the records after the one at the position only
+    void replayAfter(Position position, RecordConsumer consumer) throws IOException {
+        replayFrom(position.segment, position.offset + RECORD_HEADER_BYTES + position.length, consumer);
+    }
+
+    private void replayFrom(int firstSegment, long firstOffset, RecordConsumer consumer) throws IOException {
+        int[] segments = segmentNumbers();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] < firstSegment) { continue; }
+            long start = segments[i] == firstSegment ? firstOffset : 0;
+            long validBytes = replaySegment(segments[i], start, consumer, i == segments.length - 1);
+            if (i == segments.length - 1 && validBytes < segmentFile(segments[i]).length()) {
+                try (RandomAccessFile file = new RandomAccessFile(segmentFile(segments[i]), "rw")) {
+                    file.setLength(validBytes);
+                }
+            }
+        }
+        openSegment(segments.length == 0 ? 0 : segments[segments.length - 1]);
+    }
+
+    Position append(byte[] record) throws IOException {
+        if (current == null) {
+            int[] segments = segmentNumbers();
+            openSegment(segments.length == 0 ? 0 : segments[segments.length - 1]);
+        }
+        if (current.size() > 0 && current.size() + RECORD_HEADER_BYTES + record.length > maxSegmentBytes) {
+            // A full segment is forced as it is closed, so force only ever has the newest one to do
+            current.force(false);
+            openSegment(currentSegment + 1);
+        }
+        Position position = new Position(currentSegment, current.size(), record.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt(checksum(record));
+        buffer.put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            current.write(buffer);
+        }
+        return position;
+    }
+
+    // Makes the appended records survive a crash of the machine, not just of the process
+    void force() throws IOException {
+        if (current != null) {
+            current.force(false);
+        }
+    }
+
+    // Random access to a single record without touching the rest of the log
+    byte[] read(Position position) throws IOException {
+        FileChannel channel = reader(position.segment);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + position.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position.offset + buffer.position()) < 0) {
+                throw new EOFException("Record past the end of segment " + position.segment);
+            }
+        }
+        buffer.flip();
+        int length = buffer.getInt();
+        int crc = buffer.getInt();
+        byte[] record = new byte[position.length];
+        buffer.get(record);
+        if (length != position.length || checksum(record) != crc) {
+            throw new IOException("Corrupt record in segment " + position.segment + " at " + position.offset);
+        }
+        return record;
+    }
+
+    // The first bytes of a record's payload. Only the stored length is checked against the
+    // position: the checksum covers the whole payload, so the caller has to vouch for the bytes.
+    byte[] readPrefix(Position position, int maxBytes) throws IOException {
+        FileChannel channel = reader(position.segment);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + Math.min(maxBytes, position.length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position.offset + buffer.position()) < 0) {
+                throw new EOFException("Record past the end of segment " + position.segment);
+            }
+        }
+        buffer.flip();
+        if (buffer.getInt() != position.length) {
+            throw new IOException("No record of length " + position.length + " in segment " + position.segment
+                    + " at " + position.offset);
+        }
+        buffer.getInt();
+        byte[] prefix = new byte[buffer.remaining()];
+        buffer.get(prefix);
+        return prefix;
+    }
+
+    // Cuts the log back to just before the record at the position, used when a reorg
+    // replaces stored blocks
+    void truncate(Position position) throws IOException {
+        close();
+        for (int segment : segmentNumbers()) {
+            if (segment > position.segment && !segmentFile(segment).delete()) {
+                throw new IOException("Cannot delete " + segmentFile(segment));
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(position.segment), "rw")) {
+            file.setLength(position.offset);
+        }
+        openSegment(position.segment);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        synchronized (readers) {
+            for (FileChannel reader : readers.values()) {
+                reader.close();
+            }
+            readers.clear();
+        }
+    }
+
+    private FileChannel reader(int segment) throws IOException {
+        synchronized (readers) {
+            FileChannel reader = readers.get(segment);
+            if (reader == null) {
+                reader = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ);
+                readers.put(segment, reader);
+            }
+            return reader;
+        }
+    }
+
+    // Returns the bytes up to the first record from start on that does not check out. Only
+    // the last record of the newest segment may be torn, any other bad record is reported.
+    private long replaySegment(int segment, long start, RecordConsumer consumer, boolean newest)
+            throws IOException {
+        long validBytes = start;
+        File file = segmentFile(segment);
+        long fileBytes = file.length();
+        if (start > fileBytes) {
+            throw new IOException("Segment " + segment + " ends before " + start);
+        }
+        try (FileInputStream stream = new FileInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            stream.getChannel().position(start);
+            while (validBytes < fileBytes) {
+                int length;
+                int crc;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    crc = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Bad record length " + length + " in segment " + segment
+                                + " at " + validBytes);
+                    }
+                    // append lets a record of any size fill a segment alone, so only the file bounds it
+                    if (length > fileBytes - validBytes - RECORD_HEADER_BYTES) {
+                        throw new EOFException();
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    if (newest) { break; }
+                    throw new IOException("Segment " + segment + " ends inside the record at " + validBytes, e);
+                }
+                boolean last = validBytes + RECORD_HEADER_BYTES + length == fileBytes;
+                if (checksum(record) != crc) {
+                    if (newest && last) { break; }
+                    throw new IOException("Corrupt record in segment " + segment + " at " + validBytes);
+                }
+
+                consumer.accept(new Position(segment, validBytes, length), record);
+                validBytes += RECORD_HEADER_BYTES + length;
+            }
+        }
+        return validBytes;
+    }
+
+    private void openSegment(int segment) throws IOException {
+        if (current != null) {
+            current.close();
+        }
+        currentSegment = segment;
+        current = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+        current.position(current.size());
+    }
+
+    private int[] segmentNumbers() {
+        String[] names = directory.list((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (names == null) {
+            return new int[0];
+        }
+        int[] segments = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Integer.parseInt(names[i].substring(SEGMENT_PREFIX.length(),
+                    names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%s%05d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,16 @@
+package blockchain;
+
+// What a node did with a block handed over by a peer
+enum BlockStatus {
+    // Extended the chain
+    CONNECTED,
+    // Completed a side branch longer than the chain, which replaced the chain's tail
+    REORGANIZED,
+    // Kept as a side branch that is not longer than the chain
+    SIDE_BRANCH,
+    // Already on the chain or kept as a side branch
+    KNOWN,
+    // Its parent is unknown, the caller should fetch it and try again
+    MISSING_PARENT,
+    INVALID
+}
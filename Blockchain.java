@@ -2,201 +2,911 @@ package blockchain;
 
 import blockchain.user.Miner;
 import blockchain.user.User;
+import blockchain.utils.MetricsRegistry;
+import blockchain.utils.SignatureScheme;
+import blockchain.utils.SignatureUtils;
 
-import static blockchain.utils.SignatureUtils.verifySignature;
-
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 // Takes control of validity, checks currency status(or transaction status) and
 // unprocessed blocks(if any), and created blocks for the blockchain
 
 public class Blockchain implements Serializable {
 
-    private static class UnprocessedBlock {
-        private final ReentrantReadWriteLock readWriteLock;
-        private Block block;
+    // Immutable snapshot of the block open for mining. Every transition gets a new
+    // epoch: idle (nothing to mine), building (one thread owns the next template)
+    // and open (block is being mined since startedMs).
+    private static final class Template {
+        private final long epoch;
+        private final Block block;
+        private final boolean building;
+        private final long startedMs;
 
-        UnprocessedBlock() {
-            block = null;
-            // New Constructor Object
-            readWriteLock = new ReentrantReadWriteLock();
+        private Template(long epoch, Block block, boolean building, long startedMs) {
+            this.epoch = epoch;
+            this.block = block;
+            this.building = building;
+            this.startedMs = startedMs;
         }
 
-        Block getBlock() {
-            return block;
+        boolean isIdle() {
+            return block == null && !building;
         }
 
-        void setBlock(Block block) {
-            this.block = block;
+        Template idle() {
+            return new Template(epoch + 1, null, false, 0);
+        }
+
+        Template building() {
+            return new Template(epoch + 1, null, true, 0);
+        }
+
+        Template open(Block block) {
+            return new Template(epoch + 1, block, false, System.currentTimeMillis());
         }
 
-        // Lock read and write threads while other thread is accessing
-        ReentrantReadWriteLock.ReadLock getReadLock() {
-            return readWriteLock.readLock();
+        // Hands the template that was claimed back under a new epoch, still timed from when it opened
+        Template resume(Template claimed) {
+            return resume(claimed.block, claimed.startedMs);
         }
 
-        ReentrantReadWriteLock.WriteLock getWriteLock() {
-            return readWriteLock.writeLock();
+        Template resume(Block block, long startedMs) {
+            return new Template(epoch + 1, block, false, startedMs);
         }
     }
 
+    // Told about every block the chain accepts, in chain order, on the submitting miner's
+    // thread or the thread that handed over a peer block; and about how much of the chain
+    // is stored, on the driver's writer thread after each group of blocks it writes.
+    public interface BlockListener {
+        void blockIncluded(Block block, long height);
+
+        default void blocksPersisted(long persistedLength) { }
+    }
+
+    // Admits transactions into a block under construction while its record stays within the
+    // byte limit and each sender can pay from committed funds plus what the block already
+    // moved to it. The first transaction is admitted whatever its size.
+    private final class BlockBudget implements Predicate<Transaction> {
+        private final Map<Long, Integer> deltas = new HashMap<>();
+        private int bytesLeft;
+        private boolean empty = true;
+
+        BlockBudget(int bytes) {
+            bytesLeft = bytes;
+        }
+
+        @Override
+        public boolean test(Transaction transaction) {
+            int size = BlockCodec.encodedSize(transaction);
+            if (size > bytesLeft && !empty) { return false; }
+
+            long from = transaction.getFrom().getId();
+            int amount = transaction.getAmount();
+            if (amount > ledger.getCommittedBalance(from, initialUserBalance) + deltas.getOrDefault(from, 0)) {
+                return false;
+            }
+            deltas.merge(from, -amount, Integer::sum);
+            deltas.merge(transaction.getTo().getId(), amount, Integer::sum);
+            bytesLeft -= size;
+            empty = false;
+            return true;
+        }
+    }
+
+    // Told about the transactions submitted to this node once they are queued; transactions
+    // relayed by peers are not reported
+    public interface TransactionListener {
+        void transactionsAccepted(List<Transaction> transactions);
+    }
+
     private final List<Block> chain;
-    private final UnprocessedBlock unprocessedBlock;
-    private final Queue<Transaction> transactionQueue;
+    private final AtomicReference<Template> template;
+    private final Object templateChanged = new Object();
+    private final Mempool mempool;
+    private final BalanceLedger ledger;
+    private final TransactionIndex transactionIndex;
+    private final HistoryIndex historyIndex;
+    private final IngestionPipeline ingestionPipeline;
+    private final MetricsRegistry metrics;
+    private final MetricsRegistry.Timer largestTransactionIdLockWaits;
+    private final List<BlockListener> blockListeners = new CopyOnWriteArrayList<>();
+    private final List<TransactionListener> transactionListeners = new CopyOnWriteArrayList<>();
+    private volatile BlockAssemblyPolicy blockAssemblyPolicy = BlockAssemblyPolicy.DEFAULT;
 
     private BlockchainDriver creator;
+    private SignatureScheme signatureScheme;
 
     private long runningBlockId;
     private String runningPrevBlockHash;
 
-    private int noOfStartZerosForHash;
-    private String requiredPrefixForHash;
+    // Target of the next block, see Target and retarget
+    private volatile int bits;
+    private boolean difficultyPinned = false;
 
     private static final int BLOCK_CREATION_FREQUENCY_PER_MINUTE = 100;
     private static final int FIXED_MINING_TIME_MS = (int) ((60 * 1e3) / BLOCK_CREATION_FREQUENCY_PER_MINUTE);
-    // Setting up deviation
-    private static final int ACCEPTABLE_DEVIATION_IN_MINING_TIME_MS = ((FIXED_MINING_TIME_MS * 15) / 100);
-
-    private long currentMiningBlockStartTimeMs;
-    private long currentMiningBlockEndTimeMs;
+    // Retargeting looks at the time this many recent blocks took, and moves the target at
+    // most RETARGET_LIMIT times up or down from their mean
+    static final int RETARGET_WINDOW = 16;
+    static final int RETARGET_LIMIT = 3;
+    // How far ahead of this node's clock a peer block's timestamp may be
+    private static final long MAX_FUTURE_TIMESTAMP_MS = 15_000;
 
     // Creating an AtomicLong object with initial value 1
-    private final AtomicLong transactionIdCounter = new AtomicLong(1);
+    private AtomicLong transactionIdCounter = new AtomicLong(1);
     private long largestTransactionIdTillPrevBlock = 0L;
     private final ReentrantReadWriteLock largestTransactionIdTillPrevBlockLock = new ReentrantReadWriteLock();
 
+    private static final int MEMPOOL_CAPACITY = 100_000;
+    private static final long MEMPOOL_MAX_AGE_MS = 10 * 60 * 1000;
+
+    // Below this many unchecked blocks hashing them on the caller is cheaper than forking
+    private static final int PARALLEL_VALIDATION_MIN_BLOCKS = 256;
+
+    // Prefix of the chain that isValid already checked; blocks are never changed once added
+    private int verifiedLength = 0;
+
+    // State snapshots: the height of the last one taken, the one waiting to be written, and
+    // the height below which blocks only keep their headers in memory
+    private long snapshotHeight = 0;
+    private volatile ChainSnapshot pendingSnapshot = null;
+    private long prunedHeight = 0;
+    private long largestCommittedTransactionId = 0;
+
+    // Blocks from peers that are off the chain, by hash; a reorg steps back at most
+    // MAX_REORG_DEPTH blocks
+    static final int MAX_REORG_DEPTH = 64;
+    private final Map<String, Block> sideBlocks = new HashMap<>();
+
     private static final int mineReward = 100;
     private static final int initialUserBalance = 100;
 
     private Blockchain() {
         runningBlockId = 1;
         runningPrevBlockHash = "0";
-        chain = new LinkedList<>();
-        unprocessedBlock = new UnprocessedBlock();
-        transactionQueue = new ConcurrentLinkedQueue<>();
-        noOfStartZerosForHash = 0;
-        requiredPrefixForHash = "";
+        chain = new ArrayList<>();
+        template = new AtomicReference<>(new Template(0, null, false, 0));
+        ledger = new BalanceLedger();
+        transactionIndex = new TransactionIndex();
+        historyIndex = new HistoryIndex();
+        mempool = new Mempool(MEMPOOL_CAPACITY, MEMPOOL_MAX_AGE_MS,
+                BlockAssemblyPolicy.DEFAULT.getSelection().priority(), this::evicted);
+        ingestionPipeline = new IngestionPipeline(Runtime.getRuntime().availableProcessors());
+        bits = Target.MAX_BITS;
+
+        metrics = new MetricsRegistry();
+        largestTransactionIdLockWaits = metrics.timer("lock.largestTransactionIdTillPrevBlock.wait");
+        metrics.gauge("mempool.depth", mempool::size);
+        metrics.gauge("chain.length", chain::size);
+        metrics.gauge("transactions.indexed", transactionIndex::getCommittedCount);
+        metrics.gauge("mining.difficulty", () -> (long) Target.difficulty(bits));
     }
 
     public static Blockchain generateBlockchain(Object caller) {
+        return generateBlockchain(caller, Collections.emptyList(), SignatureUtils.RSA);
+    }
+
+    // Rebuilds the chain from stored blocks, then opens the next block for mining
+    public static Blockchain generateBlockchain(Object caller, List<Block> history, SignatureScheme signatureScheme) {
+        return generateBlockchain(caller, null, history, signatureScheme);
+    }
+
+    // Same, starting from a snapshot of the state after the first snapshot.height blocks of
+    // history. Those blocks are only indexed, or just kept as headers when the driver prunes;
+    // the blocks after them are replayed. The caller checked that the snapshot matches history.
+    static Blockchain generateBlockchain(Object caller, ChainSnapshot snapshot, List<Block> history,
+            SignatureScheme signatureScheme) {
         if(!(caller instanceof BlockchainDriver)) throw new IllegalCallerException();
         Blockchain blockchain = new Blockchain();
         blockchain.creator = (BlockchainDriver) caller;
+        blockchain.signatureScheme = signatureScheme;
+
+        int restored = snapshot == null ? 0 : (int) snapshot.height;
+        if (snapshot != null) {
+            boolean pruned = blockchain.creator.loadsHeadersOnly(snapshot);
+            for (Block block : history.subList(0, restored)) {
+                blockchain.chain.add(block);
+                if (!pruned) {
+                    blockchain.transactionIndex.commit(block, blockchain.chain.size() - 1);
+                    blockchain.historyIndex.commit(block, blockchain.chain.size() - 1);
+                }
+            }
+            blockchain.restoreState(snapshot, pruned);
+        }
+        history.subList(restored, history.size()).forEach(blockchain::replayBlock);
 
-        blockchain.unprocessedBlock.setBlock(blockchain.createBlock());
-        blockchain.currentMiningBlockStartTimeMs = System.currentTimeMillis();
+        blockchain.publish(blockchain.template.get().open(blockchain.createBlock(true)));
         return blockchain;
     }
+
+    private void restoreState(ChainSnapshot snapshot, boolean pruned) {
+        ledger.restoreCommitted(snapshot.balances);
+        if (!difficultyPinned) {
+            bits = snapshot.bits;
+        }
+        runningBlockId = snapshot.nextBlockId;
+        runningPrevBlockHash = snapshot.tipHash;
+        largestTransactionIdTillPrevBlock = snapshot.largestTransactionId;
+        largestCommittedTransactionId = snapshot.largestTransactionId;
+        transactionIdCounter.set(largestTransactionIdTillPrevBlock + 1);
+        // The snapshot was only taken of a validated chain
+        verifiedLength = (int) snapshot.height;
+        snapshotHeight = snapshot.height;
+        prunedHeight = pruned ? snapshot.height : 0;
+        if (pruned) {
+            transactionIndex.restoreForgotten(snapshot.committedIds);
+        }
+    }
+
+    private void replayBlock(Block block) {
+        chain.add(block);
+        transactionIndex.commit(block, chain.size() - 1);
+        historyIndex.commit(block, chain.size() - 1);
+        ledger.commitStoredBlock(block);
+        retarget();
+        runningBlockId = block.getId() + 1;
+        runningPrevBlockHash = block.getHash();
+
+        for (Transaction transaction : block.getTransactions()) {
+            largestTransactionIdTillPrevBlock = Math.max(largestTransactionIdTillPrevBlock, transaction.getId());
+        }
+        largestCommittedTransactionId = largestTransactionIdTillPrevBlock;
+        transactionIdCounter.set(largestTransactionIdTillPrevBlock + 1);
+    }
+
     // Store transaction in Queue and transactions status
     public boolean addTransaction(Transaction transaction) {
-        if (!validateTransaction(transaction)) { return false; }
-        transactionQueue.add(transaction);
+        return addTransactions(Collections.singletonList(transaction)) == 1;
+    }
+
+    // Bulk submit: signatures are verified in parallel, ids and balances are checked in
+    // submission order and the accepted ones are queued together. Returns how many were accepted.
+    public int addTransactions(Collection<Transaction> transactions) {
+        List<Transaction> batch = new ArrayList<>(transactions);
+        Rejection[] rejections = admit(batch, true);
 
-        // Locking the block to write while the thread is processing
-        unprocessedBlock.getWriteLock().lock();
-        if (unprocessedBlock.getBlock() == null) {
-            unprocessedBlock.setBlock(createBlock());
-            currentMiningBlockStartTimeMs = System.currentTimeMillis();
+        List<Transaction> accepted = new ArrayList<>(batch.size());
+        for (int i = 0; i < rejections.length; i++) {
+            if (rejections[i] == null) {
+                accepted.add(batch.get(i));
+            }
         }
-        // Releasing the lock
-        unprocessedBlock.getWriteLock().unlock();
-        return true;
+        if (!accepted.isEmpty()) {
+            transactionListeners.forEach(listener -> listener.transactionsAccepted(accepted));
+        }
+        return accepted.size();
     }
 
-    // Initialize block with
-    private Block createBlock() {
-        largestTransactionIdTillPrevBlockLock.writeLock().lock();
-        largestTransactionIdTillPrevBlock = transactionQueue.stream()
-                                                .map(Transaction::getId)
-                                                .max(Long::compare).orElse(0L);
+    // Transactions relayed by a peer. Ids come from every node, so a relayed one may be older
+    // than the newest this node already put in a block, and the stale id check is skipped;
+    // duplicates are still caught by the transaction index. Null marks the queued ones.
+    Rejection[] addRelayedTransactions(List<Transaction> batch) {
+        return admit(batch, false);
+    }
 
-        List<Transaction> transactions = new LinkedList<>();
-        for (int i = 0; i < transactionQueue.size(); i++) {
-            transactions.add(transactionQueue.remove());
+    private Rejection[] admit(List<Transaction> batch, boolean checkStaleIds) {
+        Rejection[] rejections = validateTransactions(batch, ingestionPipeline.verify(batch, signatureScheme), checkStaleIds);
+
+        int nAccepted = 0;
+        for (Rejection rejection : rejections) {
+            if (rejection == null) {
+                nAccepted++;
+            } else {
+                metrics.counter(rejection.metricName()).increment();
+            }
+        }
+        metrics.counter("transactions.accepted").add(nAccepted);
+        ingestionPipeline.recordOutcome(nAccepted, batch.size() - nAccepted);
+        if (nAccepted > 0) {
+            openTemplateIfIdle();
         }
+        return rejections;
+    }
 
-        Block block = Block.with(runningBlockId++, transactions, runningPrevBlockHash, mineReward);
+    // Builds a template from the mempool when nothing is being mined. Only the thread that
+    // moves the template from idle to building drains the mempool; the others see a
+    // non-idle template and leave. Reading the mempool after reading an idle template
+    // pairs with submitBlock publishing idle before reading the mempool, so a transaction
+    // queued in between is never left behind.
+    private void openTemplateIfIdle() {
+        while (true) {
+            Template current = template.get();
+            if (!current.isIdle() || mempool.isEmpty()) { return; }
+
+            Template building = current.building();
+            if (template.compareAndSet(current, building)) {
+                long offers = mempool.getOffers();
+                Template next = nextTemplate(building);
+                publish(next);
+                // The policy admitted none of the queued transactions. Try again only if some
+                // arrived meanwhile: their submitters saw a template being built and left.
+                if (!next.isIdle() || mempool.getOffers() == offers) { return; }
+            }
+        }
+    }
+
+    // Opens a block on what the mempool yields, or goes idle when the policy admits none of
+    // it, such as transfers waiting for funds that never came; miners then wait instead of
+    // mining empty blocks
+    private Template nextTemplate(Template building) {
+        Block block = createBlock(false);
+        return block == null ? building.idle() : building.open(block);
+    }
+
+    private void publish(Template next) {
+        template.set(next);
+        synchronized (templateChanged) {
+            templateChanged.notifyAll();
+        }
+    }
+
+    public void addBlockListener(BlockListener listener) {
+        blockListeners.add(listener);
+    }
+
+    public void removeBlockListener(BlockListener listener) {
+        blockListeners.remove(listener);
+    }
+
+    public void addTransactionListener(TransactionListener listener) {
+        transactionListeners.add(listener);
+    }
+
+    public void removeTransactionListener(TransactionListener listener) {
+        transactionListeners.remove(listener);
+    }
+
+    // Applies from the next template on; the block being mined keeps its transactions
+    public void setBlockAssemblyPolicy(BlockAssemblyPolicy policy) {
+        mempool.setOrder(policy.getSelection().priority(), policy.getSelection().isRoundRobin());
+        blockAssemblyPolicy = policy;
+    }
+
+    public BlockAssemblyPolicy getBlockAssemblyPolicy() { return blockAssemblyPolicy; }
+
+    public void setVerifierThreads(int verifierThreads) {
+        ingestionPipeline.setVerifierThreads(verifierThreads);
+    }
+
+    public int getMempoolSize() { return mempool.size(); }
+
+    public double getIngestionTps() { return ingestionPipeline.getSustainedTps(); }
+
+    // Counters, gauges and timers of this node, see MetricsRegistry for JMX and text export
+    public MetricsRegistry getMetrics() { return metrics; }
+
+    // Initialize block with as much of the mempool as the assembly policy allows. Null if that
+    // is nothing and an empty block was not asked for.
+    private Block createBlock(boolean allowEmpty) {
+        BlockAssemblyPolicy policy = blockAssemblyPolicy;
+        lockTimed(largestTransactionIdTillPrevBlockLock.writeLock(), largestTransactionIdLockWaits);
+        List<Transaction> transactions = mempool.drain(policy.getMaxTransactions(),
+                new BlockBudget(policy.getTransactionBytes()), System.currentTimeMillis());
+        if (transactions.isEmpty() && !allowEmpty) {
+            largestTransactionIdTillPrevBlockLock.writeLock().unlock();
+            return null;
+        }
+        // Never lowered: with a size limit or a non-FIFO order a block may take older ids than the last one
+        largestTransactionIdTillPrevBlock = Math.max(largestTransactionIdTillPrevBlock, transactions.stream()
+                                                .map(Transaction::getId)
+                                                .max(Long::compare).orElse(0L));
+
+        long tipTimestamp = chain.isEmpty() ? 0 : chain.get(chain.size() - 1).getTimestamp();
+        Block block = Block.with(runningBlockId++, transactions, runningPrevBlockHash, mineReward, tipTimestamp);
+        block.setBits(bits);
         runningPrevBlockHash = null;
         largestTransactionIdTillPrevBlockLock.writeLock().unlock();
         return block;
     }
 
-    public synchronized boolean submitBlock(Block block, Object caller) {
+    // The block is checked against a snapshot of the template and the first miner to
+    // move that snapshot's epoch on wins; losers fail the compare-and-set and return at once.
+    public boolean submitBlock(Block block, Object caller) {
         if (!(caller instanceof Miner)) {
             throw new IllegalCallerException();
         }
 
-        if (!areIdenticalBlocks(unprocessedBlock.getBlock(), block)) { return false; }
-        if (!block.getHash().startsWith(requiredPrefixForHash)) { return false; }
+        Template expected = template.get();
+        if (!areIdenticalBlocks(expected.block, block)) { return false; }
+        if (!Target.isMetBy(block.getHash(), block.getBits())) { return false; }
         if (!block.isConsistent()) { return false; }
 
-        currentMiningBlockEndTimeMs = System.currentTimeMillis();
+        Template building = expected.building();
+        if (!template.compareAndSet(expected, building)) {
+            metrics.counter("template.lostSubmits").increment();
+            return false;
+        }
+
+        block.setTimeTookForMiningMs(System.currentTimeMillis() - expected.startedMs);
+        metrics.timer("block.miningTime").record(TimeUnit.MILLISECONDS.toNanos(block.getTimeTookForMiningMs()));
+        metrics.counter("block.transactions").add(block.getTransactions().size());
 
-        block.setTimeTookForMiningMs(currentMiningBlockEndTimeMs - currentMiningBlockStartTimeMs);
+        // Only the winner gets here; the monitor orders the append with isValid
+        long height;
+        synchronized (this) {
+            height = appendBlock(block, null);
+        }
 
-        unprocessedBlock.getWriteLock().lock();
+        // Still the only winner until the next template is published, so listeners and the
+        // writer see chain order
+        blockListeners.forEach(listener -> listener.blockIncluded(block, height));
+        store(List.of(block));
+
+        publish(mempool.isEmpty() ? building.idle() : nextTemplate(building));
+        openTemplateIfIdle();
+        return true;
+    }
 
+    // Commits a block on top of the chain and returns its height. wasPending tells which of its
+    // transactions this node had booked as pending, null when the block came from its own template.
+    private long appendBlock(Block block, boolean[] wasPending) {
         chain.add(block);
-        updateMiningConstraints();
+        long height = chain.size() - 1;
+        transactionIndex.commit(block, height);
+        historyIndex.commit(block, height);
+        if (wasPending == null) {
+            ledger.commitBlock(block);
+        } else {
+            ledger.commitBlock(block, wasPending);
+        }
+        retarget();
+        runningBlockId = block.getId() + 1;
         runningPrevBlockHash = block.getHash();
+        for (Transaction transaction : block.getTransactions()) {
+            largestCommittedTransactionId = Math.max(largestCommittedTransactionId, transaction.getId());
+        }
 
-        if (transactionQueue.isEmpty()) {
-            unprocessedBlock.setBlock(null);
-        } else {
-            unprocessedBlock.setBlock(createBlock());
-            currentMiningBlockStartTimeMs = System.currentTimeMillis();
+        int snapshotInterval = creator.getSnapshotInterval();
+        if (snapshotInterval > 0 && chain.size() % snapshotInterval == 0) {
+            pendingSnapshot = new ChainSnapshot(chain.size(), block.getHash(), block.getId() + 1,
+                    largestCommittedTransactionId, bits, ledger.getCommittedBalances(), null);
+            snapshotHeight = chain.size();
+        }
+        return height;
+    }
+
+    // Queues committed blocks for the driver's writer, the pending snapshot with the block it was taken at
+    private void store(List<Block> blocks) {
+        if (blocks.isEmpty()) { return; }
+        ChainSnapshot snapshot = takePendingSnapshot();
+        long enqueueStartNs = System.nanoTime();
+        for (Block block : blocks) {
+            long height = block.getId() - 1;
+            creator.enqueue(block, height, snapshot != null && snapshot.height == height + 1 ? snapshot : null);
+        }
+        metrics.timer("persistence.enqueue").record(System.nanoTime() - enqueueStartNs);
+    }
+
+    // Called by the driver's writer once the first durableLength blocks are stored
+    void blocksStored(long durableLength) {
+        blockListeners.forEach(listener -> listener.blocksPersisted(durableLength));
+        if (creator.isPruningSnapshottedBlocks()) {
+            pruneSnapshottedBlocks();
+        }
+    }
+
+    // A block mined by a peer. It is connected when its parent is the tip and kept as a side
+    // branch otherwise; a side branch that gets longer than the chain replaces the chain's
+    // tail, so the longest chain wins and on a tie the block that arrived first stays.
+    // A reorg steps back at most MAX_REORG_DEPTH blocks and never over pruned ones.
+    BlockStatus acceptPeerBlock(Block block) {
+        if (!block.isConsistent() || !Arrays.equals(MerkleTree.root(block.getTransactions()), block.getMerkleRoot())) {
+            metrics.counter("peer.blocks.invalid").increment();
+            return BlockStatus.INVALID;
+        }
+        // Most peer blocks are known already or land on a side branch, the miners are not
+        // disturbed for those
+        synchronized (this) {
+            if (!movesTip(block)) { return keepOffChain(block); }
+        }
+
+        // Same exclusion as a winning submit, plus the id lock so no admission is half way
+        // between claiming an id and queueing its transaction while the chain moves
+        Template claimed = claimTemplate();
+        Template building = template.get();
+        List<Block> connected = new ArrayList<>();
+        BlockStatus status = null;
+        lockTimed(largestTransactionIdTillPrevBlockLock.writeLock(), largestTransactionIdLockWaits);
+        try {
+            synchronized (this) {
+                List<Block> branch = movesTip(block) ? branchTo(block) : null;
+                if (branch == null) {
+                    status = keepOffChain(block);
+                } else {
+                    if (claimed.block != null) {
+                        mempool.restore(claimed.block.getTransactions(), System.currentTimeMillis());
+                    }
+                    status = switchTo(branch, connected);
+                }
+            }
+        } finally {
+            largestTransactionIdTillPrevBlockLock.writeLock().unlock();
+        }
+
+        if (status == BlockStatus.SIDE_BRANCH || status == BlockStatus.KNOWN || status == BlockStatus.MISSING_PARENT) {
+            // Nothing moved after all (another block got there first). The miners dropped their
+            // work when the template was claimed, so the same block goes back out under a new
+            // epoch; an epoch is never reused, or a waiting miner would miss the change.
+            publish(building.resume(claimed));
+            openTemplateIfIdle();
+            return status;
         }
 
-        unprocessedBlock.getWriteLock().unlock();
+        connected.forEach(next -> blockListeners.forEach(listener -> listener.blockIncluded(next, next.getId() - 1)));
+        store(connected);
+        publish(mempool.isEmpty() ? building.idle() : nextTemplate(building));
+        openTemplateIfIdle();
+        return status;
+    }
+
+    // Moves the template to building for the caller, waiting out a submit or peer block holding
+    // it. That can take a while when the writer's queue is full, so the caller sleeps until the
+    // next publish; an interrupt does not give up the claim, it is passed on once it is made.
+    private Template claimTemplate() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Template current = template.get();
+                if (!current.building) {
+                    if (template.compareAndSet(current, current.building())) { return current; }
+                    continue;
+                }
+                synchronized (templateChanged) {
+                    while (template.get() == current) {
+                        try {
+                            templateChanged.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // True when the block is new and extends the tip or a side branch past the chain's length
+    private boolean movesTip(Block block) {
+        if (isKnown(block)) { return false; }
+        return block.getPrevBlockHash().equals(tipHash()) || block.getId() > chain.size() && hasKnownParent(block);
+    }
+
+    private BlockStatus keepOffChain(Block block) {
+        if (isKnown(block)) { return BlockStatus.KNOWN; }
+        if (!hasKnownParent(block)) { return BlockStatus.MISSING_PARENT; }
+        if (block.getId() > chain.size() - MAX_REORG_DEPTH) {
+            sideBlocks.put(block.getHash(), block);
+            metrics.counter("peer.blocks.sideBranch").increment();
+        }
+        return BlockStatus.SIDE_BRANCH;
+    }
+
+    // The side branch from the chain up to the block, or null (after keeping the block as a
+    // side branch) if the branch is broken or forks off too deep for a reorg
+    private List<Block> branchTo(Block block) {
+        List<Block> branch = new ArrayList<>();
+        branch.add(block);
+        Block first = block;
+        while (!isOnChain(first.getId() - 1, first.getPrevBlockHash())) {
+            first = sideBlocks.get(first.getPrevBlockHash());
+            if (first == null) { return null; }
+            branch.add(0, first);
+        }
+
+        long forkLength = first.getId() - 1;
+        if (chain.size() - forkLength > MAX_REORG_DEPTH || forkLength < prunedHeight) {
+            metrics.counter("chain.reorgsRefused").increment();
+            return null;
+        }
+        return branch;
+    }
+
+    // Rolls the chain back to the branch's fork point and connects the branch. If one of its
+    // blocks turns out invalid the chain is put back the way it was.
+    private BlockStatus switchTo(List<Block> branch, List<Block> connected) {
+        int forkLength = (int) branch.get(0).getId() - 1;
+        List<Block> rolledBack = rollbackTo(forkLength);
+        for (Block next : branch) {
+            if (!connect(next)) {
+                sideBlocks.remove(next.getHash());
+                metrics.counter("peer.blocks.invalid").increment();
+                rollbackTo(forkLength);
+                rolledBack.forEach(this::connect);
+                connected.clear();
+                return BlockStatus.INVALID;
+            }
+            connected.add(next);
+        }
+
+        branch.forEach(next -> sideBlocks.remove(next.getHash()));
+        sideBlocks.values().removeIf(side -> side.getId() <= chain.size() - MAX_REORG_DEPTH);
+        if (rolledBack.isEmpty()) { return BlockStatus.CONNECTED; }
+
+        rolledBack.forEach(old -> sideBlocks.put(old.getHash(), old));
+        metrics.counter("chain.reorgs").increment();
+        metrics.counter("chain.reorgedBlocks").add(rolledBack.size());
+        verifiedLength = Math.min(verifiedLength, forkLength);
+        if (snapshotHeight > forkLength) {
+            // The snapshot describes blocks that are gone, pruning waits for the next one
+            pendingSnapshot = null;
+            snapshotHeight = prunedHeight;
+        }
+        creator.truncate(forkLength);
+        return BlockStatus.REORGANIZED;
+    }
+
+    // Takes blocks off the tip down to the given length. Their transactions are queued
+    // again in front of the others, the oldest block's first.
+    private List<Block> rollbackTo(int length) {
+        long nowMs = System.currentTimeMillis();
+        List<Block> rolledBack = new ArrayList<>();
+        while (chain.size() > length) {
+            int height = chain.size() - 1;
+            Block block = chain.remove(height);
+            transactionIndex.uncommit(block);
+            historyIndex.rollback(block, height);
+            ledger.rollbackBlock(block);
+            mempool.restore(block.getTransactions(), nowMs);
+            rolledBack.add(0, block);
+        }
+        runningBlockId = length + 1;
+        runningPrevBlockHash = tipHash();
+        retarget();
+        return rolledBack;
+    }
+
+    // Checks a peer block against the tip the way a template is checked when it is built,
+    // with signatures verified only for transactions this node has not queued itself, and
+    // commits it
+    private boolean connect(Block block) {
+        if (block.getId() != chain.size() + 1 || !block.getPrevBlockHash().equals(tipHash())) { return false; }
+        if (block.getBits() != bits || !Target.isMetBy(block.getHash(), bits)) { return false; }
+        // Timestamps steer the target, so they may not run backwards or far ahead
+        if (!chain.isEmpty() && block.getTimestamp() < chain.get(chain.size() - 1).getTimestamp()
+                || block.getTimestamp() > System.currentTimeMillis() + MAX_FUTURE_TIMESTAMP_MS) {
+            return false;
+        }
+
+        List<Transaction> transactions = block.getTransactions();
+        boolean[] wasPending = new boolean[transactions.size()];
+        List<Transaction> unseen = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        BlockBudget budget = new BlockBudget(Integer.MAX_VALUE);
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            // Checked here, before the block is appended, so pruning can always record the id
+            if (!TransactionIndex.isTrackable(transaction.getId()) || !ids.add(transaction.getId())) { return false; }
 
-        creator.saveBlockchain();
+            Transaction queued = mempool.get(transaction.getId());
+            if (queued != null) {
+                // The same id must not stand for a different transfer
+                if (!Arrays.equals(queued.getHash(), transaction.getHash())) { return false; }
+                wasPending[i] = true;
+            } else if (transactionIndex.wasCommitted(transaction.getId())) {
+                return false;
+            } else {
+                unseen.add(transaction);
+            }
+            if (!budget.test(transaction)) { return false; }
+        }
+        for (Rejection rejection : ingestionPipeline.verify(unseen, signatureScheme)) {
+            if (rejection != null) { return false; }
+        }
+
+        for (int i = 0; i < transactions.size(); i++) {
+            if (wasPending[i]) {
+                mempool.remove(transactions.get(i).getId());
+            }
+        }
+        appendBlock(block, wasPending);
+        metrics.counter("peer.blocks.connected").increment();
         return true;
     }
 
+    private String tipHash() {
+        return chain.isEmpty() ? "0" : chain.get(chain.size() - 1).getHash();
+    }
+
+    // Whether the chain's block with the given id (its height plus one) has the hash; id 0
+    // stands for the parent of the first block
+    private boolean isOnChain(long id, String hash) {
+        if (id == 0) { return hash.equals("0"); }
+        return id <= chain.size() && chain.get((int) id - 1).getHash().equals(hash);
+    }
+
+    private boolean isKnown(Block block) {
+        return sideBlocks.containsKey(block.getHash()) || isOnChain(block.getId(), block.getHash());
+    }
+
+    private boolean hasKnownParent(Block block) {
+        if (isOnChain(block.getId() - 1, block.getPrevBlockHash())) { return true; }
+        Block parent = sideBlocks.get(block.getPrevBlockHash());
+        return parent != null && parent.getId() == block.getId() - 1;
+    }
+
+    // A block on the chain or on a side branch, for peers fetching a missing parent. A pruned
+    // block is read from the store after the chain's lock is let go: the driver takes the
+    // chain's lock under its own, never the other way round.
+    Block findBlock(long id, String hash) {
+        synchronized (this) {
+            Block side = sideBlocks.get(hash);
+            if (side != null) { return side; }
+            if (!isOnChain(id, hash) || id == 0) { return null; }
+            if (id > prunedHeight) { return chain.get((int) id - 1); }
+        }
+        try {
+            Block stored = creator.readBlock(id - 1);
+            return stored != null && stored.getHash().equals(hash) ? stored : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The transactions with the given ids that wait for a block on this node or are already
+    // in one, null where the id is unknown. Peers use it to rebuild announced blocks.
+    Transaction[] findKnownTransactions(long[] ids) {
+        Map<Long, Transaction> templated = new HashMap<>();
+        Block templateBlock = template.get().block;
+        if (templateBlock != null) {
+            templateBlock.getTransactions().forEach(transaction -> templated.put(transaction.getId(), transaction));
+        }
+
+        Transaction[] found = new Transaction[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            found[i] = mempool.get(ids[i]);
+            if (found[i] == null) {
+                found[i] = templated.get(ids[i]);
+            }
+            if (found[i] == null) {
+                found[i] = findTransaction(ids[i]);
+            }
+        }
+        return found;
+    }
+
+    // Draws transaction ids from another node's counter, so ids are unique across an in-process cluster
+    void useTransactionIdsOf(Blockchain source) {
+        transactionIdCounter = source.transactionIdCounter;
+    }
+
+    // Taken along with the block it was taken at, or by a driver save
+    // The snapshot with the ids of every transaction committed below its height, for a driver
+    // that prunes. Built by the driver's writer, off the submit path; null if the chain no
+    // longer holds the snapshot's tip or was pruned past it.
+    synchronized ChainSnapshot withCommittedIds(ChainSnapshot snapshot) {
+        if (snapshot.height > chain.size() || prunedHeight > snapshot.height
+                || !chain.get((int) snapshot.height - 1).getHash().equals(snapshot.tipHash)) {
+            return null;
+        }
+        BitSet ids = transactionIndex.forgottenIds();
+        for (long height = prunedHeight; height < snapshot.height; height++) {
+            for (Transaction transaction : chain.get((int) height).getTransactions()) {
+                ids.set(TransactionIndex.bitOf(transaction.getId()));
+            }
+        }
+        return snapshot.withCommittedIds(ids);
+    }
+
+    ChainSnapshot takePendingSnapshot() {
+        ChainSnapshot snapshot = pendingSnapshot;
+        pendingSnapshot = null;
+        return snapshot;
+    }
+
+    // Replaces the stored blocks below the last snapshot with their headers, their bodies
+    // stay readable through BlockchainDriver.readBlock
+    private void pruneSnapshottedBlocks() {
+        // Read first, the driver's lock is never taken under the chain's
+        long persistedLength = creator.getPersistedLength();
+        synchronized (this) {
+            long pruneTo = Math.min(snapshotHeight, persistedLength);
+            for (long height = prunedHeight; height < pruneTo; height++) {
+                Block block = chain.get((int) height);
+                transactionIndex.forget(block);
+                chain.set((int) height, block.withoutTransactions());
+            }
+            if (pruneTo > prunedHeight) {
+                historyIndex.pruneBelow(pruneTo);
+                prunedHeight = pruneTo;
+            }
+        }
+    }
+
     // Cloning unprocessedBlock
     public Block getUnprocessedBlock() {
         try {
-            return (Block) unprocessedBlock.getBlock().clone();
+            return (Block) template.get().block.clone();
         } catch (Exception e) {
             return null;
         }
     }
 
-    // Checking the current hash and storing it as prev hash
-    public boolean isValid() {
-        long id = 1;
-        String prevBlockHash = "0";
+    // Checks the blocks added since the last successful call; a long unchecked stretch
+    // (a cold start) is rehashed in parallel and the linkage is walked afterwards
+    public synchronized boolean isValid() {
+        int length = chain.size();
+        if (verifiedLength == length) { return true; }
 
-        for (Block block : chain) {
-            if (block.getId() != id) return false;
-            if (!block.getPrevBlockHash().equals(prevBlockHash)) return false;
-            if (!block.isConsistent()) return false;
-            String presentHash = block.getHash();
+        long startNs = System.nanoTime();
+        int from = verifiedLength;
+        IntStream unchecked = IntStream.range(from, length);
+        if (length - from >= PARALLEL_VALIDATION_MIN_BLOCKS) {
+            unchecked = unchecked.parallel();
+        }
+        if (!unchecked.allMatch(i -> chain.get(i).isConsistent())) { return false; }
 
-            id += 1;
-            prevBlockHash = presentHash;
+        String prevBlockHash = from == 0 ? "0" : chain.get(from - 1).getHash();
+        for (int i = from; i < length; i++) {
+            Block block = chain.get(i);
+            if (block.getId() != i + 1) return false;
+            if (!block.getPrevBlockHash().equals(prevBlockHash)) return false;
+            prevBlockHash = block.getHash();
         }
 
+        verifiedLength = length;
+        metrics.timer("chain.validation").record(System.nanoTime() - startNs);
         return true;
     }
 
-    public long getLength() { return chain.size(); }
+    // Scheme users of this chain generate keys and sign transactions with
+    public SignatureScheme getSignatureScheme() { return signatureScheme; }
+
+    // Blocks until the block at the given height, whichever it is by then, is stored as the
+    // driver's durability policy defines it. Returns false if the timeout passed first.
+    public boolean awaitDurableHeight(long height, long timeoutMs) throws InterruptedException {
+        return creator.awaitDurableLength(height + 1, timeoutMs);
+    }
+
+    // Epoch of the current template, it moves on every template change so miners can drop stale work
+    public long getTemplateVersion() { return template.get().epoch; }
 
-    public Block getBlock(int index) { return chain.get(index); }
+    // Template change event: blocks until the template version differs from seenVersion
+    // (a new block to mine, or none left) and returns the new version, or seenVersion on timeout
+    public long awaitTemplateChange(long seenVersion, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (templateChanged) {
+            long remaining = timeoutMs;
+            while (template.get().epoch == seenVersion && remaining > 0) {
+                templateChanged.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return template.get().epoch;
+        }
+    }
 
-    public String getRequiredPrefixForHash() { return requiredPrefixForHash; }
+    // Under the chain's lock like every change to it, so a reorg or a prune is never seen half done
+    public synchronized long getLength() { return chain.size(); }
 
-    public static int getFixedMiningTimeMs() { return FIXED_MINING_TIME_MS; }
+    public synchronized Block getBlock(int index) { return chain.get(index); }
 
-    public static int getAcceptableDeviationInMiningTimeMs() { return ACCEPTABLE_DEVIATION_IN_MINING_TIME_MS; }
+    // Target of the block being mined, see Target
+    public int getBits() { return bits; }
+
+    public static int getFixedMiningTimeMs() { return FIXED_MINING_TIME_MS; }
 
     public long getTransactionId() {
         return transactionIdCounter.getAndIncrement();
@@ -211,108 +921,170 @@ public class Blockchain implements Serializable {
         if (b1.getId() != b2.getId()) { return false; }
         if (b1.getTimestamp() != b2.getTimestamp()) { return false; }
         if (!b1.getPrevBlockHash().equals(b2.getPrevBlockHash())) { return false; }
-        if (!b1.getTransactionsToStringCached().equals(b2.getTransactionsToStringCached())) { return false; }
+        if (!Arrays.equals(b1.getMerkleRoot(), b2.getMerkleRoot())) { return false; }
+        if (b1.getBits() != b2.getBits()) { return false; }
 
         return true;
     }
 
-    // Validationg Transaction details
-    private boolean validateTransaction(Transaction transaction) {
-        largestTransactionIdTillPrevBlockLock.readLock().lock();
-        if (transaction.getId() < largestTransactionIdTillPrevBlock) { return false; }
-        largestTransactionIdTillPrevBlockLock.readLock().unlock();
-        
-        if (transaction.getFrom() == transaction.getTo()) { return false; }
-        if (!transaction.getFrom().getPublicKey().equals(transaction.getPublicKey())) { return false; }
-        if (!verifySignature(transaction.toString(), transaction.getSignature(), transaction.getPublicKey())) { return false; }
-        if (transaction.getAmount() > getBalance(transaction.getFrom(), initialUserBalance)) { return false; }
-        return true;
+    // Validationg Transaction details, signatures were already checked by the pipeline.
+    // Holding the read lock keeps createBlock from draining the mempool in between.
+    // Returns the rejection of every transaction, null for the accepted ones.
+    private Rejection[] validateTransactions(List<Transaction> batch, Rejection[] rejections, boolean checkStaleIds) {
+        lockTimed(largestTransactionIdTillPrevBlockLock.readLock(), largestTransactionIdLockWaits);
+        try {
+            boolean[] candidates = new boolean[rejections.length];
+            for (int i = 0; i < rejections.length; i++) {
+                long id = batch.get(i).getId();
+                if (rejections[i] == null && !TransactionIndex.isTrackable(id)) {
+                    rejections[i] = Rejection.BAD_ID;
+                } else if (rejections[i] == null && checkStaleIds && id < largestTransactionIdTillPrevBlock) {
+                    rejections[i] = Rejection.STALE_ID;
+                } else if (rejections[i] == null && !transactionIndex.claim(id)) {
+                    rejections[i] = Rejection.DUPLICATE;
+                }
+                candidates[i] = rejections[i] == null;
+            }
+            // Booked and queued one at a time in batch order: a transfer that does not fit in the
+            // mempool is evicted while no later one of the batch is booked, so the eviction of
+            // its dependents only sees transfers that are really queued
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < candidates.length; i++) {
+                if (!candidates[i]) { continue; }
+                if (!ledger.tryAddPending(batch.get(i), initialUserBalance)) {
+                    rejections[i] = Rejection.INSUFFICIENT_BALANCE;
+                    transactionIndex.release(batch.get(i).getId());
+                } else if (!mempool.offer(batch.get(i), now)) {
+                    // Mempool is full, hand the amount and the id back
+                    evicted(batch.get(i));
+                    rejections[i] = Rejection.MEMPOOL_FULL;
+                }
+            }
+            return rejections;
+        } finally {
+            largestTransactionIdTillPrevBlockLock.readLock().unlock();
+        }
     }
 
-    // Defining and Initializing a user defined DS
-    // Getting values and processing unprocessed blocks & user transactions
-    public int getBalance(User user, int seed) {
-        class ToBeProcessedBlocks {
-            int nBlocks = 0;
-            int nTransactions = 0;
+    // Undoes the admission of a transaction that left the mempool without reaching a block.
+    // Its recipient may have queued transfers paid from it; those can never be mined now and
+    // leave too, newest first, until the recipient's balance covers the rest, and so on down
+    // the line.
+    private void evicted(Transaction transaction) {
+        revertAdmission(transaction);
+        ArrayDeque<Transaction> reverted = new ArrayDeque<>();
+        reverted.add(transaction);
+        while (!reverted.isEmpty()) {
+            User recipient = reverted.poll().getTo();
+            while (ledger.getBalance(recipient, initialUserBalance) < 0) {
+                Transaction dependent = mempool.removeNewest(recipient.getId());
+                if (dependent == null) { break; }
+                revertAdmission(dependent);
+                metrics.counter("mempool.evictedDependents").increment();
+                reverted.add(dependent);
+            }
         }
-        ToBeProcessedBlocks toBeProcessedBlocks = new ToBeProcessedBlocks();
-
-        unprocessedBlock.getReadLock().lock();
-        toBeProcessedBlocks.nBlocks += chain.size();
-        toBeProcessedBlocks.nBlocks += unprocessedBlock.getBlock() == null ? 0 : 1;
-        toBeProcessedBlocks.nTransactions += transactionQueue.size();
-        unprocessedBlock.getReadLock().unlock();
+    }
 
-        AtomicInteger balance = new AtomicInteger(seed);
+    private void revertAdmission(Transaction transaction) {
+        ledger.revertPending(transaction);
+        transactionIndex.release(transaction.getId());
+    }
 
-        for (int i = 0; i < toBeProcessedBlocks.nBlocks-1; i++) {
-            processBlockForBalance(user, balance, chain.get(i));
-        }
+    // Committed transaction with this id, looked up through the transaction index, or null
+    // (also for transactions of blocks pruned after a snapshot). Under the chain's lock, so
+    // a reorg cannot move the block between the lookup and the read.
+    public synchronized Transaction findTransaction(long id) {
+        long height = transactionIndex.heightOf(id);
+        if (height < 0) { return null; }
+        return chain.get((int) height).getTransactions().get(transactionIndex.positionOf(id));
+    }
 
-        if (chain.size() >= toBeProcessedBlocks.nBlocks+1) {
-            processBlockForBalance(user, balance, chain.get(toBeProcessedBlocks.nBlocks-1));
-            Block block = chain.get(toBeProcessedBlocks.nBlocks);
-            for (int i=0; i < toBeProcessedBlocks.nTransactions; i++) {
-                processTransactionForBalance(user, balance, block.getTransactions().get(i));
-            }
-        }
-        else {
-            unprocessedBlock.getReadLock().lock();
-            if (chain.size() == toBeProcessedBlocks.nBlocks) {
-                processBlockForBalance(user, balance, chain.get(toBeProcessedBlocks.nBlocks-1));
-                Block block = unprocessedBlock.getBlock();
-                for (int i=0; i < toBeProcessedBlocks.nTransactions; i++) {
-                    processTransactionForBalance(user, balance, block.getTransactions().get(i));
-                }
-            } else {
-                processBlockForBalance(user, balance, unprocessedBlock.getBlock());
-                Iterator iterator = transactionQueue.iterator();
-                for (int i=0; i < toBeProcessedBlocks.nTransactions; i++) {
-                    processTransactionForBalance(user, balance, (Transaction) iterator.next());
-                }
-            }
-            unprocessedBlock.getReadLock().unlock();
+    // Proof of work headers (see BlockHeader) of up to count blocks from fromHeight on,
+    // which is all a LightClient needs to follow the chain
+    public synchronized List<byte[]> getHeaders(long fromHeight, int count) {
+        List<byte[]> headers = new ArrayList<>();
+        for (long height = Math.max(0, fromHeight); height < chain.size() && headers.size() < count; height++) {
+            Block block = chain.get((int) height);
+            headers.add(block.getHeader().toBytes(block.getMagicNum()));
         }
+        return headers;
+    }
 
-        return balance.get();
+    // Merkle branch showing that a committed transaction is in its block, or null if the
+    // transaction is not committed or its block was pruned after a snapshot
+    public synchronized InclusionProof getInclusionProof(long transactionId) {
+        long height = transactionIndex.heightOf(transactionId);
+        if (height < 0) { return null; }
+        Block block = chain.get((int) height);
+        int position = transactionIndex.positionOf(transactionId);
+        return new InclusionProof(height, block.getHash(), block.getTransactions().get(position),
+                MerkleTree.branch(block.getTransactions(), position));
     }
 
-    // Getting Transactions and reward for the miner
-    private void processBlockForBalance(User user, AtomicInteger currBalance,Block block) {
-        if (user == block.getMiner()) {
-            currBalance.set(currBalance.get() + block.getMineReward());
+    // Committed transfers sent or received by the user, starting at block height fromHeight
+    // (0 is the first block). Blocks pruned after a snapshot are left out. Pass getNextHeight()
+    // of a page to get the following one. Costs a binary search plus the page itself, whatever
+    // the length of the chain. Read under the chain's lock, so a reorg cannot take a block
+    // away while the page is built.
+    public synchronized HistoryPage getHistory(User user, long fromHeight, int limit) {
+        long[] postings = historyIndex.page(user.getId(), fromHeight, limit);
+        List<Transaction> transactions = new ArrayList<>(postings.length);
+        for (long posting : postings) {
+            Block block = chain.get((int) HistoryIndex.heightOf(posting));
+            transactions.add(block.getTransactions().get(HistoryIndex.positionOf(posting)));
         }
-        block.getTransactions().forEach(
-                transaction -> processTransactionForBalance(user, currBalance, transaction)
-        );
+        long nextHeight = postings.length < limit || postings.length == 0
+                ? -1 : HistoryIndex.heightOf(postings[postings.length - 1]) + 1;
+        return new HistoryPage(transactions, nextHeight);
     }
 
-    // Checking for debit / credit transactions
-    private void processTransactionForBalance(User user, AtomicInteger currBalance,Transaction transaction) {
-        if (transaction.getFrom() == user) {
-            currBalance.set(currBalance.get() - transaction.getAmount());
-        } else if (transaction.getTo() == user) {
-            currBalance.set(currBalance.get() + transaction.getAmount());
-        }
+    // Committed balance plus the pending overlay of mempool transactions
+    public int getBalance(User user, int seed) {
+        return ledger.getBalance(user, seed);
     }
 
-    // Doing some static calculations
-    private void updateMiningConstraints() {
-        long timeTookForMining = currentMiningBlockEndTimeMs - currentMiningBlockStartTimeMs;
+    // Acquires the lock, recording how long the caller waited for it
+    private static void lockTimed(Lock lock, MetricsRegistry.Timer waits) {
+        long startNs = System.nanoTime();
+        lock.lock();
+        waits.record(System.nanoTime() - startNs);
+    }
 
-        if (timeTookForMining >= (FIXED_MINING_TIME_MS - ACCEPTABLE_DEVIATION_IN_MINING_TIME_MS)
-            && timeTookForMining <= (FIXED_MINING_TIME_MS + ACCEPTABLE_DEVIATION_IN_MINING_TIME_MS)) {
+    // Holds the difficulty at the given number of zeros, for benchmarks that submit without mining
+    // and clusters that want forks from mining races only. Meant to be called before mining starts.
+    // An open template goes back out under a new epoch with a copy of its block at the pinned
+    // target; the block miners may be hashing is never changed.
+    void pinDifficulty(int noOfStartZeros) {
+        Template claimed = claimTemplate();
+        Template building = template.get();
+        bits = Target.ofLeadingZeros(noOfStartZeros);
+        difficultyPinned = true;
+        if (claimed.block == null) {
+            publish(building.idle());
+            openTemplateIfIdle();
             return;
         }
+        Block pinned = (Block) claimed.block.clone();
+        pinned.setBits(bits);
+        publish(building.resume(pinned, claimed.startedMs));
+    }
 
-        if(timeTookForMining < (FIXED_MINING_TIME_MS - ACCEPTABLE_DEVIATION_IN_MINING_TIME_MS)) {
-            noOfStartZerosForHash++;
-            requiredPrefixForHash = requiredPrefixForHash.concat("0");
-            return;
+    // Sets the target of the next block from the last RETARGET_WINDOW blocks, see
+    // Target.retarget. Their time is read from the header timestamps, which the proof of
+    // work commits to, so every node and light client computes the same target from the
+    // same chain and a reorg just computes it again. A header is stamped when its template
+    // opens, so a quiet spell with nothing to mine counts as time taken.
+    private void retarget() {
+        if (difficultyPinned) { return; }
+        int window = Math.min(RETARGET_WINDOW + 1, chain.size());
+        int[] windowBits = new int[window];
+        long[] timestamps = new long[window];
+        for (int i = 0; i < window; i++) {
+            Block block = chain.get(chain.size() - window + i);
+            windowBits[i] = block.getBits();
+            timestamps[i] = block.getTimestamp();
         }
-
-        noOfStartZerosForHash = Math.max(0, --noOfStartZerosForHash);
-        requiredPrefixForHash = "0".repeat(noOfStartZerosForHash);
+        bits = Target.retarget(windowBits, timestamps, FIXED_MINING_TIME_MS, RETARGET_LIMIT);
     }
 }
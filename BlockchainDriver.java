@@ -1,46 +1,517 @@
 package blockchain;
 
+import java.io.File;
 import java.io.IOException;
-import blockchain.utils.*;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
-// Serilaizing and desrializing blocks in a file
+import blockchain.utils.MetricsRegistry;
+import blockchain.utils.SignatureScheme;
+import blockchain.utils.SignatureUtils;
+import blockchain.utils.StringUtils;
+
+// Persisting blocks to an append-only segment log, indexing them by height and
+// hash for random access, and replaying them on startup.
+//
+// Committed blocks are written behind the chain: the committing thread queues them and
+// returns, and a writer thread appends whatever has queued up in one go, forcing the
+// log once per group rather than once per block. A full queue holds the committing
+// thread back, so a slow disk slows the chain down instead of filling memory.
 public class BlockchainDriver {
-    String fileName;
+
+    // When a written block counts as stored. NONE leaves the blocks to the operating
+    // system and never forces the log; PER_BATCH forces it once per group of blocks
+    // written together; PER_BLOCK after every block.
+    public enum Durability { NONE, PER_BATCH, PER_BLOCK }
+
+    // A committed block waiting for the writer, with the snapshot taken at its height if any
+    private static final class PendingWrite {
+        final long sequence;
+        final long height;
+        final Block block;
+        final ChainSnapshot snapshot;
+
+        PendingWrite(long sequence, long height, Block block, ChainSnapshot snapshot) {
+            this.sequence = sequence;
+            this.height = height;
+            this.block = block;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static final String DEFAULT_DATA_DIRECTORY = "blockchain-data";
+    private static final long SEGMENT_SIZE_BYTES = 16L * 1024 * 1024;
+    // Largest encoded block that fits a segment together with its record header
+    static final int MAX_BLOCK_BYTES = (int) SEGMENT_SIZE_BYTES - BlockLog.RECORD_HEADER_BYTES;
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+    private static final int WRITE_QUEUE_CAPACITY = 256;
+    private static final int MAX_BLOCKS_PER_WRITE = 64;
+    private static final long WRITE_RETRY_MS = 100;
+
+    File dataDirectory;
     Blockchain blockchain;
+    private SignatureScheme signatureScheme;
+    private BlockLog blockLog;
+    private BlockIndex blockIndex;
+    private long persistedLength;
+    private long durableLength;
+    // Length the store still has to be cut back to after a reorg, -1 if none
+    private long pendingCut = -1;
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private boolean pruneSnapshottedBlocks = false;
+    private Durability durability = Durability.PER_BATCH;
+
+    private final BlockingQueue<PendingWrite> writeQueue = new ArrayBlockingQueue<>(WRITE_QUEUE_CAPACITY);
+    private final AtomicLong writeSequence = new AtomicLong();
+    private volatile Thread writer;
+    // Reorgs the writer has not passed yet, as {last sequence queued before it, length it
+    // cut the chain back to}: queued blocks at or above that length are off the chain.
+    // Guards itself and requestedCut, which a reorg sets without waiting for the store.
+    private final ArrayDeque<long[]> truncations = new ArrayDeque<>();
+    // Shortest length a reorg cut the chain back to since the store last looked, -1 if none
+    private long requestedCut = -1;
 
     private BlockchainDriver() {
-        fileName = null;
+        dataDirectory = null;
         blockchain = null;
     }
 
     public static BlockchainDriver newDriver() {
+        return newDriver(DEFAULT_DATA_DIRECTORY);
+    }
+
+    public static BlockchainDriver newDriver(SignatureScheme signatureScheme) {
+        return newDriver(DEFAULT_DATA_DIRECTORY, signatureScheme);
+    }
+
+    public static BlockchainDriver newDriver(String dataDirectory) {
+        return newDriver(dataDirectory, SignatureUtils.RSA);
+    }
+
+    public static BlockchainDriver newDriver(String dataDirectory, SignatureScheme signatureScheme) {
         BlockchainDriver driver = new BlockchainDriver();
-        driver.fileName = driver.toString();
+        driver.dataDirectory = new File(dataDirectory);
+        driver.signatureScheme = signatureScheme;
         return driver;
     }
 
+    // A state snapshot is written every interval blocks, 0 turns snapshots off
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    // When set, blocks covered by a snapshot only keep their headers in memory; their
+    // bodies stay in the block log and can still be read with readBlock
+    public void setPruneSnapshottedBlocks(boolean pruneSnapshottedBlocks) {
+        this.pruneSnapshottedBlocks = pruneSnapshottedBlocks;
+    }
+
+    public synchronized void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    int getSnapshotInterval() { return snapshotInterval; }
+
+    boolean isPruningSnapshottedBlocks() { return pruneSnapshottedBlocks; }
+
+    // Blocks written to the log, readable with readBlock
+    synchronized long getPersistedLength() {
+        takeRequestedCut();
+        return persistedLength;
+    }
+
+    // Blocks stored as the durability policy defines it
+    synchronized long getDurableLength() {
+        takeRequestedCut();
+        return durableLength;
+    }
+
+    // Waits until the first length blocks are stored as the durability policy defines it,
+    // returns false if the timeout passed first
+    synchronized boolean awaitDurableLength(long length, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (getDurableLength() < length && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return getDurableLength() >= length;
+    }
+
+    // The stored chain, or an empty one when nothing is stored yet. A store that cannot be
+    // read or does not hold a valid chain is reported and left as it is, to be looked into
+    // or moved aside by hand; a torn record at the very end is the only thing cut off.
     public Blockchain getBlockchain() {
         if (blockchain != null && blockchain.isValid()) { return blockchain; }
 
+        Blockchain loaded;
         try {
-            blockchain = (Blockchain) SerializationUtils.deserialize(fileName);
-        } catch(Exception ignored) {
-
-        } finally {
-            if (blockchain == null || !blockchain.isValid()) {
-                blockchain = Blockchain.generateBlockchain(this);
-            }
+            loaded = loadBlockchain();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the blocks stored in " + dataDirectory, e);
         }
-
+        if (!loaded.isValid()) {
+            throw new IllegalStateException("The blocks stored in " + dataDirectory + " do not form a valid chain");
+        }
+        blockchain = loaded;
         return blockchain;
     }
 
+    // Appends the blocks committed since the last save and forces them as the durability
+    // policy asks, without waiting for the writer; earlier blocks are never rewritten
     public boolean saveBlockchain() {
+        // Completed before taking the store's lock, which the chain's lock is never taken under
+        return saveBlockchain(withCommittedIds(blockchain.takePendingSnapshot()));
+    }
+
+    private synchronized boolean saveBlockchain(ChainSnapshot snapshot) {
         try {
-            SerializationUtils.serialize(blockchain, fileName);
+            openStore();
+            appendFromChain(blockchain.getLength());
+            if (durability != Durability.NONE) {
+                blockLog.force();
+            }
+            durableLength = persistedLength;
+            notifyAll();
+
+            if (snapshot != null && snapshot.height <= persistedLength) {
+                snapshot.writeTo(dataDirectory);
+            }
             return true;
         } catch (IOException ignored) {
             return false;
         }
     }
-}
\ No newline at end of file
+
+    // Queues a committed block for the writer, in chain order. Waits while the queue is
+    // full; an interrupt does not drop the block, it is passed on once the block is queued.
+    void enqueue(Block block, long height, ChainSnapshot snapshot) {
+        startWriter();
+        PendingWrite write = new PendingWrite(writeSequence.incrementAndGet(), height, block, snapshot);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writeQueue.put(write);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Forgets the stored blocks from the given height on, after a reorg took them off the
+    // chain. A snapshot past that height no longer matches the chain and is dropped.
+    // Blocks queued before the call from that height on are dropped by the writer. Only
+    // records the cut: the reorg does not wait for the store, whose next use makes it.
+    void truncate(long length) {
+        synchronized (truncations) {
+            truncations.addLast(new long[] { writeSequence.get(), length });
+            requestedCut = requestedCut < 0 ? length : Math.min(requestedCut, length);
+        }
+    }
+
+    // Stored block at the given height, read through the index without loading the chain
+    public synchronized Block readBlock(long height) throws IOException {
+        openStore();
+        BlockLog.Position position = blockIndex.positionOf(height);
+        return position == null ? null : new BlockCodec().decode(blockLog.read(position));
+    }
+
+    public synchronized Block readBlock(String hash) throws IOException {
+        openStore();
+        long height = blockIndex.heightOf(StringUtils.hexToBytes(hash, 32));
+        return height < 0 ? null : readBlock(height);
+    }
+
+    // Up to count stored blocks starting at fromHeight
+    public synchronized List<Block> readBlocks(long fromHeight, int count) throws IOException {
+        openStore();
+        BlockCodec codec = new BlockCodec();
+        List<Block> blocks = new ArrayList<>(count);
+        for (long height = fromHeight; height < fromHeight + count; height++) {
+            BlockLog.Position position = blockIndex.positionOf(height);
+            if (position == null) { break; }
+            blocks.add(codec.decode(blockLog.read(position)));
+        }
+        return blocks;
+    }
+
+    public synchronized long getStoredLength() throws IOException {
+        openStore();
+        return blockIndex.size();
+    }
+
+    // Blocks a snapshot covers are loaded as headers only when pruning, if it lists the ids
+    // of their transactions
+    boolean loadsHeadersOnly(ChainSnapshot snapshot) {
+        return pruneSnapshottedBlocks && snapshot != null && snapshot.committedIds != null;
+    }
+
+    // A snapshot as it is written: with its committed ids when pruning, null if the chain
+    // moved off it
+    private ChainSnapshot withCommittedIds(ChainSnapshot snapshot) {
+        if (snapshot == null || !pruneSnapshottedBlocks || snapshot.committedIds != null) { return snapshot; }
+        return blockchain.withCommittedIds(snapshot);
+    }
+
+    private Blockchain loadBlockchain() throws IOException {
+        ChainSnapshot snapshot = ChainSnapshot.readFrom(dataDirectory);
+        openStore();
+        if (snapshot != null && snapshot.height > 0 && blockIndex.size() >= snapshot.height
+                && blockIndex.heightOf(StringUtils.hexToBytes(snapshot.tipHash, 32)) == snapshot.height - 1) {
+            Blockchain restored = loadFromSnapshot(snapshot);
+            if (restored != null) { return restored; }
+            // The index does not match the log, it is rebuilt from the replay
+            blockIndex.truncate(0);
+        }
+
+        long headersOnlyBelow = loadsHeadersOnly(snapshot) ? snapshot.height : 0;
+
+        BlockCodec codec = new BlockCodec();
+        List<Block> history = new ArrayList<>();
+        List<BlockLog.Position> positions = new ArrayList<>();
+
+        blockLog.replay((position, record) -> {
+            history.add(history.size() < headersOnlyBelow ? codec.decodeHeader(record) : codec.decode(record));
+            positions.add(position);
+        });
+        persistedLength = history.size();
+        durableLength = persistedLength;
+
+        // A snapshot ahead of the log (its blocks were lost in a crash) or off the stored
+        // chain is ignored; if it was used to skip transaction bodies, read them after all
+        if (snapshot != null && (snapshot.height <= 0 || snapshot.height > history.size()
+                || !history.get((int) snapshot.height - 1).getHash().equals(snapshot.tipHash))) {
+            snapshot = null;
+            if (headersOnlyBelow > 0) {
+                ChainSnapshot.deleteFrom(dataDirectory);
+                return loadBlockchain();
+            }
+        }
+
+        // The index is derived from the log, bring it back in line after a crash
+        blockIndex.truncate(persistedLength);
+        for (long height = blockIndex.size(); height < persistedLength; height++) {
+            Block block = history.get((int) height);
+            blockIndex.append(height, positions.get((int) height), StringUtils.hexToBytes(block.getHash(), 32));
+        }
+
+        return Blockchain.generateBlockchain(this, snapshot, history, signatureScheme);
+    }
+
+    // Startup cost bounded by the blocks after the snapshot: the ones it covers are read
+    // through the index, as headers only when pruning, and the log is replayed from the
+    // record after its tip. The index is not forced with the log, so after a crash it may
+    // point at the wrong bytes: every block read through it must match the hash it hashes
+    // to and link up to the snapshot's tip. Null if one does not, or cannot be read; the
+    // caller then replays the whole log.
+    private Blockchain loadFromSnapshot(ChainSnapshot snapshot) throws IOException {
+        BlockCodec codec = new BlockCodec();
+        List<Block> history = new ArrayList<>();
+        List<BlockLog.Position> positions = new ArrayList<>();
+        try {
+            for (long height = 0; height < snapshot.height; height++) {
+                BlockLog.Position position = blockIndex.positionOf(height);
+                Block block = loadsHeadersOnly(snapshot)
+                        ? codec.decodeHeader(blockLog.readPrefix(position, BlockCodec.MAX_HEADER_SIZE))
+                        : codec.decode(blockLog.read(position));
+                if (!block.isConsistent()
+                        || !Arrays.equals(blockIndex.hashOf(height), StringUtils.hexToBytes(block.getHash(), 32))
+                        || height > 0 && !block.getPrevBlockHash().equals(history.get((int) height - 1).getHash())) {
+                    return null;
+                }
+                history.add(block);
+            }
+            if (!history.get(history.size() - 1).getHash().equals(snapshot.tipHash)) { return null; }
+
+            blockLog.replayAfter(blockIndex.positionOf(snapshot.height - 1), (position, record) -> {
+                history.add(codec.decode(record));
+                positions.add(position);
+            });
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        persistedLength = history.size();
+        durableLength = persistedLength;
+
+        blockIndex.truncate(persistedLength);
+        for (long height = blockIndex.size(); height < persistedLength; height++) {
+            Block block = history.get((int) height);
+            blockIndex.append(height, positions.get((int) (height - snapshot.height)),
+                    StringUtils.hexToBytes(block.getHash(), 32));
+        }
+
+        return Blockchain.generateBlockchain(this, snapshot, history, signatureScheme);
+    }
+
+    private void startWriter() {
+        if (writer != null) { return; }
+        synchronized (writeQueue) {
+            if (writer != null) { return; }
+            blockchain.getMetrics().gauge("persistence.queued", writeQueue::size);
+            Thread thread = new Thread(this::writeBehind, "block-writer");
+            thread.setDaemon(true);
+            thread.start();
+            writer = thread;
+        }
+    }
+
+    // The writer thread: takes what has queued up, at most MAX_BLOCKS_PER_WRITE blocks, and
+    // writes it as one group. A failed group is tried again, and the chain is told how much
+    // of it is stored after every group.
+    private void writeBehind() {
+        MetricsRegistry metrics = blockchain.getMetrics();
+        MetricsRegistry.Timer writeTimer = metrics.timer("persistence.write");
+        List<PendingWrite> batch = new ArrayList<>(MAX_BLOCKS_PER_WRITE);
+        try {
+            while (true) {
+                if (batch.isEmpty() && isDurable()) {
+                    batch.add(writeQueue.take());
+                }
+                writeQueue.drainTo(batch, MAX_BLOCKS_PER_WRITE - batch.size());
+                addCommittedIds(batch);
+
+                int size = batch.size();
+                long startNs = System.nanoTime();
+                if (!writeBatch(batch)) {
+                    metrics.counter("persistence.writeFailures").increment();
+                    Thread.sleep(WRITE_RETRY_MS);
+                    continue;
+                }
+                writeTimer.record(System.nanoTime() - startNs);
+                metrics.counter("persistence.writes").increment();
+                metrics.counter("persistence.blocks").add(size);
+                blockchain.blocksStored(getDurableLength());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Completes the group's snapshots before the store's lock is taken
+    private void addCommittedIds(List<PendingWrite> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            PendingWrite write = batch.get(i);
+            if (write.snapshot != null && write.snapshot.committedIds == null && pruneSnapshottedBlocks) {
+                batch.set(i, new PendingWrite(write.sequence, write.height, write.block,
+                        withCommittedIds(write.snapshot)));
+            }
+        }
+    }
+
+    private synchronized boolean isDurable() { return getDurableLength() == persistedLength; }
+
+    // Appends the group's blocks that are still on the chain, forces the log as the policy
+    // asks and writes the newest snapshot among them. Blocks leave the group once handled;
+    // after a failure the rest stay for the next attempt.
+    private synchronized boolean writeBatch(List<PendingWrite> batch) {
+        int handled = 0;
+        ChainSnapshot snapshot = null;
+        try {
+            openStore();
+            for (PendingWrite write : batch) {
+                if (!isTruncated(write)) {
+                    // Behind the block only for a chain handed to the driver unstored
+                    appendFromChain(write.height);
+                    if (write.height == persistedLength) {
+                        append(write.block);
+                        if (durability == Durability.PER_BLOCK) {
+                            blockLog.force();
+                        }
+                        if (write.snapshot != null) {
+                            snapshot = write.snapshot;
+                        }
+                    }
+                }
+                handled++;
+            }
+            if (durability == Durability.PER_BATCH) {
+                blockLog.force();
+            }
+            durableLength = persistedLength;
+            notifyAll();
+
+            if (snapshot != null && snapshot.height <= persistedLength) {
+                snapshot.writeTo(dataDirectory);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            batch.subList(0, handled).clear();
+        }
+    }
+
+    // Whether a reorg that came after the block was queued took its height off the chain.
+    // Blocks arrive in queue order, so reorgs older than the block are done with.
+    private boolean isTruncated(PendingWrite write) {
+        synchronized (truncations) {
+            while (!truncations.isEmpty() && truncations.peekFirst()[0] < write.sequence) {
+                truncations.pollFirst();
+            }
+            for (long[] truncation : truncations) {
+                if (write.height >= truncation[1]) { return true; }
+            }
+            return false;
+        }
+    }
+
+    // Writes the chain's blocks up to the given length that are not stored yet
+    private void appendFromChain(long length) throws IOException {
+        while (persistedLength < length) {
+            append(blockchain.getBlock((int) persistedLength));
+        }
+    }
+
+    private void append(Block block) throws IOException {
+        BlockLog.Position position = blockLog.append(BlockCodec.encode(block));
+        blockIndex.append(persistedLength, position, StringUtils.hexToBytes(block.getHash(), 32));
+        persistedLength++;
+    }
+
+    // Takes a cut a reorg asked for into the stored lengths; the files are cut by openStore.
+    // Blocks written since the request are all below it: queued ones at or above it are
+    // skipped, and every write starts with openStore.
+    private void takeRequestedCut() {
+        long cut;
+        synchronized (truncations) {
+            cut = requestedCut;
+            requestedCut = -1;
+        }
+        if (cut < 0 || cut >= persistedLength) { return; }
+
+        pendingCut = pendingCut < 0 ? cut : Math.min(pendingCut, cut);
+        persistedLength = cut;
+        durableLength = Math.min(durableLength, cut);
+    }
+
+    // Opens the store, first making the cuts reorgs asked for
+    private void openStore() throws IOException {
+        takeRequestedCut();
+        if (blockLog == null) {
+            blockLog = new BlockLog(dataDirectory, SEGMENT_SIZE_BYTES);
+            blockIndex = new BlockIndex(dataDirectory);
+        }
+        if (pendingCut < 0) { return; }
+
+        ChainSnapshot snapshot = ChainSnapshot.readFrom(dataDirectory);
+        if (snapshot != null && snapshot.height > pendingCut) {
+            ChainSnapshot.deleteFrom(dataDirectory);
+        }
+        BlockLog.Position position = blockIndex.positionOf(pendingCut);
+        if (position != null) {
+            blockLog.truncate(position);
+        }
+        blockIndex.truncate(pendingCut);
+        pendingCut = -1;
+    }
+}
@@ -0,0 +1,138 @@
+package blockchain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Chain state after the first `height` blocks: committed balances, target bits,
+// the running ids, the ids of every committed transaction and the tip hash.
+// Startup restores it and only replays the blocks after it. The file is replaced
+// through a temporary file and an atomic move, and carries a CRC32, so a crash
+// leaves either the old or the new one.
+//
+//   state.snapshot  [int magic][int version][payload][long crc32 of payload]
+
+final class ChainSnapshot {
+    static final String FILE_NAME = "state.snapshot";
+    private static final int MAGIC = 0x534e4150;
+    private static final int VERSION = 3;
+
+    final long height;
+    final String tipHash;
+    final long nextBlockId;
+    final long largestTransactionId;
+    final int bits;
+    final Map<Long, Integer> balances;
+    // Ids of the transactions in the blocks it covers, so they still count as committed when
+    // those blocks are loaded as headers only. Null unless the driver prunes; the writer adds
+    // them, the submit path never builds them.
+    final BitSet committedIds;
+
+    ChainSnapshot(long height, String tipHash, long nextBlockId, long largestTransactionId,
+            int bits, Map<Long, Integer> balances, BitSet committedIds) {
+        this.height = height;
+        this.tipHash = tipHash;
+        this.nextBlockId = nextBlockId;
+        this.largestTransactionId = largestTransactionId;
+        this.bits = bits;
+        this.balances = balances;
+        this.committedIds = committedIds;
+    }
+
+    ChainSnapshot withCommittedIds(BitSet committedIds) {
+        return new ChainSnapshot(height, tipHash, nextBlockId, largestTransactionId, bits, balances,
+                committedIds);
+    }
+
+    void writeTo(File directory) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64 + balances.size() * 12);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(height);
+        payload.writeUTF(tipHash);
+        payload.writeLong(nextBlockId);
+        payload.writeLong(largestTransactionId);
+        payload.writeInt(bits);
+        payload.writeInt(balances.size());
+        for (Map.Entry<Long, Integer> balance : balances.entrySet()) {
+            payload.writeLong(balance.getKey());
+            payload.writeInt(balance.getValue());
+        }
+        if (committedIds == null) {
+            payload.writeInt(-1);
+        } else {
+            byte[] ids = committedIds.toByteArray();
+            payload.writeInt(ids.length);
+            payload.write(ids);
+        }
+        payload.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes.toByteArray());
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(payloadBytes.size() + 16);
+        DataOutputStream out = new DataOutputStream(fileBytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        payloadBytes.writeTo(out);
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        File file = new File(directory, FILE_NAME);
+        File tmp = new File(directory, FILE_NAME + ".tmp");
+        Files.write(tmp.toPath(), fileBytes.toByteArray());
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The stored snapshot, or null if there is none or it does not check out
+    static ChainSnapshot readFrom(File directory) {
+        File file = new File(directory, FILE_NAME);
+        if (!file.isFile()) { return null; }
+
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (bytes.length < 16) { return null; }
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(bytes, 0, 8));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) { return null; }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 8, bytes.length - 16);
+            long storedCrc = new DataInputStream(new ByteArrayInputStream(bytes, bytes.length - 8, 8)).readLong();
+            if (crc.getValue() != storedCrc) { return null; }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 8, bytes.length - 16));
+            long height = in.readLong();
+            String tipHash = in.readUTF();
+            long nextBlockId = in.readLong();
+            long largestTransactionId = in.readLong();
+            int bits = in.readInt();
+            int nBalances = in.readInt();
+            Map<Long, Integer> balances = new HashMap<>(nBalances * 2);
+            for (int i = 0; i < nBalances; i++) {
+                balances.put(in.readLong(), in.readInt());
+            }
+            int nIdBytes = in.readInt();
+            BitSet committedIds = null;
+            if (nIdBytes >= 0) {
+                byte[] ids = new byte[nIdBytes];
+                in.readFully(ids);
+                committedIds = BitSet.valueOf(ids);
+            }
+            return new ChainSnapshot(height, tipHash, nextBlockId, largestTransactionId, bits,
+                    balances, committedIds);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static void deleteFrom(File directory) throws IOException {
+        Files.deleteIfExists(new File(directory, FILE_NAME).toPath());
+    }
+}
@@ -0,0 +1,281 @@
+package blockchain;
+
+import blockchain.user.UserFactory;
+import blockchain.utils.MetricsRegistry;
+import blockchain.utils.SignatureScheme;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// Several nodes in one JVM, each with its own chain, mempool, miners and block log, linked
+// by a SimulatedNetwork. Transactions and blocks are gossiped between peers and every node
+// follows the longest chain it knows, so blocks mined at the same time on different nodes
+// fork the chain until one branch gets ahead. The report measures how long blocks take to
+// reach the other nodes, how many mined blocks ended up off the chain and how many bytes
+// relaying a block costs.
+
+public class Cluster {
+
+    public static final class Report {
+        private final int nodes;
+        private final long length;
+        private final boolean converged;
+        private final long blocksMined;
+        private final long orphaned;
+        private final long reorgs;
+        private final MetricsRegistry.Histogram propagation;
+        private final double relayBytesPerBlock;
+        private final double fullBlockBytes;
+        private final double compactHitRate;
+        private final long transactionBytes;
+
+        private Report(int nodes, long length, boolean converged, long blocksMined, long orphaned, long reorgs,
+                MetricsRegistry.Histogram propagation, double relayBytesPerBlock, double fullBlockBytes,
+                double compactHitRate, long transactionBytes) {
+            this.nodes = nodes;
+            this.length = length;
+            this.converged = converged;
+            this.blocksMined = blocksMined;
+            this.orphaned = orphaned;
+            this.reorgs = reorgs;
+            this.propagation = propagation;
+            this.relayBytesPerBlock = relayBytesPerBlock;
+            this.fullBlockBytes = fullBlockBytes;
+            this.compactHitRate = compactHitRate;
+            this.transactionBytes = transactionBytes;
+        }
+
+        public long getLength() { return length; }
+
+        // Whether every node had the same tip when the report was taken
+        public boolean isConverged() { return converged; }
+
+        public long getBlocksMined() { return blocksMined; }
+
+        public long getOrphaned() { return orphaned; }
+
+        // Share of the mined blocks that are not on the first node's chain
+        public double getOrphanRate() { return blocksMined == 0 ? 0 : (double) orphaned / blocksMined; }
+
+        public long getReorgs() { return reorgs; }
+
+        // From a block joining its miner's chain to it joining each other node's chain
+        public MetricsRegistry.Histogram getPropagation() { return propagation; }
+
+        // Block relay bytes sent per mined block, over all links
+        public double getRelayBytesPerBlock() { return relayBytesPerBlock; }
+
+        // Mean encoded size of a mined block
+        public double getFullBlockBytes() { return fullBlockBytes; }
+
+        // Share of compact blocks rebuilt without asking for transactions
+        public double getCompactHitRate() { return compactHitRate; }
+
+        @Override
+        public String toString() {
+            return String.format("%d nodes, chain length %d, %s%n", nodes, length,
+                    converged ? "all nodes on the same tip" : "nodes on different tips")
+                    + String.format("Mined %d blocks, %d off the chain (orphan rate %.1f%%), %d reorgs%n",
+                    blocksMined, orphaned, 100 * getOrphanRate(), reorgs)
+                    + String.format("Propagation p50 %.1f ms, p99 %.1f ms, max %.1f ms over %d deliveries%n",
+                    propagation.getPercentileMs(0.5), propagation.getPercentileMs(0.99), propagation.getMaxMs(),
+                    propagation.getCount())
+                    + String.format("Block relay %.0f bytes per block for blocks of %.0f bytes, "
+                    + "%.1f%% of compact blocks complete on arrival%n",
+                    relayBytesPerBlock, fullBlockBytes, 100 * compactHitRate)
+                    + String.format("Transaction gossip %d bytes%n", transactionBytes);
+        }
+    }
+
+    // Message kinds that make up block relay, see ClusterNode
+    private static final String[] BLOCK_RELAY_KINDS = {
+            "compactBlock", "getBlockTransactions", "blockTransactions", "getBlock", "block" };
+
+    private final List<Blockchain> nodes;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final MetricsRegistry.Histogram propagation = metrics.histogram("cluster.propagation");
+    private final Map<String, Long> firstIncludedNs = new ConcurrentHashMap<>();
+    private final LongAdder minedBlockBytes = new LongAdder();
+
+    private long latencyMs = 50;
+    private long bytesPerSecond = 1_000_000;
+    private int peersPerNode = 2;
+    private int minersPerNode = 1;
+    private boolean compactRelay = true;
+    private int pinnedDifficulty = -1;
+    private long seed = 1;
+
+    private SimulatedNetwork network;
+    private final List<ClusterNode> clusterNodes = new ArrayList<>();
+    private ExecutorService minerExecutor;
+
+    private Cluster(List<BlockchainDriver> drivers) {
+        nodes = new ArrayList<>(drivers.size());
+        for (BlockchainDriver driver : drivers) {
+            Blockchain node = driver.getBlockchain();
+            if (!nodes.isEmpty()) {
+                node.useTransactionIdsOf(nodes.get(0));
+            }
+            nodes.add(node);
+        }
+    }
+
+    // Node i keeps its blocks under baseDirectory/node-i and resumes from what is stored there
+    public static Cluster with(int nodes, String baseDirectory, SignatureScheme signatureScheme) {
+        if (nodes < 1) {
+            throw new IllegalArgumentException("A cluster needs at least one node: " + nodes);
+        }
+        List<BlockchainDriver> drivers = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            drivers.add(BlockchainDriver.newDriver(new File(baseDirectory, "node-" + i).getPath(), signatureScheme));
+        }
+        return new Cluster(drivers);
+    }
+
+    // One way delay of every link
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    // Every node is linked to its neighbours in a ring, and to random others up to this many peers
+    public void setPeersPerNode(int peersPerNode) {
+        this.peersPerNode = Math.max(1, peersPerNode);
+    }
+
+    public void setMinersPerNode(int minersPerNode) {
+        this.minersPerNode = Math.max(0, minersPerNode);
+    }
+
+    // Off sends every block in full
+    public void setCompactRelay(boolean compactRelay) {
+        this.compactRelay = compactRelay;
+    }
+
+    // Holds every node at the given number of leading zeros, so forks come from mining
+    // races rather than from nodes disagreeing about the difficulty
+    public void pinDifficulty(int noOfStartZeros) {
+        this.pinnedDifficulty = noOfStartZeros;
+    }
+
+    // Seeds the random links of the topology
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public List<Blockchain> getNodes() { return nodes; }
+
+    public MetricsRegistry getMetrics() { return metrics; }
+
+    // Links the nodes and starts their miners. Wallets come from the UserFactory of the first node.
+    public void start() {
+        network = new SimulatedNetwork(latencyMs, bytesPerSecond, metrics);
+        for (int i = 0; i < nodes.size(); i++) {
+            Blockchain node = nodes.get(i);
+            if (pinnedDifficulty >= 0) {
+                node.pinDifficulty(pinnedDifficulty);
+            }
+            // Ahead of the relay, so a block's first inclusion is noted before any peer can see it
+            node.addBlockListener((block, height) -> blockIncluded(block));
+            ClusterNode clusterNode = new ClusterNode(i, node, network, metrics, compactRelay);
+            clusterNodes.add(clusterNode);
+            clusterNode.start();
+        }
+        link();
+
+        UserFactory userFactory = UserFactory.with(nodes.get(0));
+        minerExecutor = Executors.newFixedThreadPool(Math.max(1, nodes.size() * minersPerNode));
+        for (Blockchain node : nodes) {
+            for (int k = 0; k < minersPerNode; k++) {
+                minerExecutor.submit(userFactory.newMiner(node));
+            }
+        }
+    }
+
+    public Report report() {
+        Blockchain first = nodes.get(0);
+        Set<String> onChain = new HashSet<>();
+        long length = first.getLength();
+        for (int i = 0; i < length; i++) {
+            onChain.add(first.getBlock(i).getHash());
+        }
+        boolean converged = true;
+        long reorgs = 0;
+        for (Blockchain node : nodes) {
+            converged &= node.getLength() == length
+                    && (length == 0 || node.getBlock((int) length - 1).getHash().equals(first.getBlock((int) length - 1).getHash()));
+            reorgs += node.getMetrics().counter("chain.reorgs").sum();
+        }
+
+        long blocksMined = firstIncludedNs.size();
+        long orphaned = firstIncludedNs.keySet().stream().filter(hash -> !onChain.contains(hash)).count();
+        long relayBytes = 0;
+        for (String kind : BLOCK_RELAY_KINDS) {
+            relayBytes += network == null ? 0 : network.getBytes(kind);
+        }
+        long compactReceived = metrics.counter("relay.compact.received").sum();
+        return new Report(nodes.size(), length, converged, blocksMined, orphaned, reorgs, propagation,
+                blocksMined == 0 ? 0 : (double) relayBytes / blocksMined,
+                blocksMined == 0 ? 0 : (double) minedBlockBytes.sum() / blocksMined,
+                compactReceived == 0 ? 0 : (double) metrics.counter("relay.compact.complete").sum() / compactReceived,
+                network == null ? 0 : network.getBytes("transactions"));
+    }
+
+    public void shutdown() {
+        if (minerExecutor != null) {
+            minerExecutor.shutdownNow();
+        }
+        clusterNodes.forEach(ClusterNode::shutdown);
+        if (network != null) {
+            network.shutdown();
+        }
+    }
+
+    // The first node to include a block is the one that mined it
+    private void blockIncluded(Block block) {
+        long nowNs = System.nanoTime();
+        Long firstNs = firstIncludedNs.putIfAbsent(block.getHash(), nowNs);
+        if (firstNs != null) {
+            propagation.record(nowNs - firstNs);
+            return;
+        }
+        try {
+            minedBlockBytes.add(BlockCodec.encode(block).length);
+        } catch (IOException e) {
+            metrics.counter("relay.blocks.unencodable").increment();
+        }
+    }
+
+    private void link() {
+        int n = nodes.size();
+        for (int i = 0; i + 1 < n; i++) {
+            network.connect(i, i + 1);
+        }
+        if (n > 2) {
+            network.connect(n - 1, 0);
+        }
+
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < n; i++) {
+            for (int attempt = 0; attempt < 4 * n && network.peersOf(i).size() < Math.min(peersPerNode, n - 1); attempt++) {
+                int peer = random.nextInt(n);
+                if (peer != i && network.peersOf(peer).size() < peersPerNode) {
+                    network.connect(i, peer);
+                }
+            }
+        }
+    }
+}
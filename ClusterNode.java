@@ -0,0 +1,354 @@
+package blockchain;
+
+import blockchain.user.Miner;
+import blockchain.utils.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// One node of an in-process cluster: relays what its chain accepts to its peers and
+// hands what the peers send to its chain. Messages are handled one at a time on the
+// node's inbox thread.
+//
+// Blocks are announced compactly, as the header and the ids of their transactions.
+// Transaction ids are unique across the cluster, so they serve as short ids; a peer
+// rebuilds the block from the transactions it already has, asks the announcing node for
+// the others only, and checks the result against the merkle root. A block that does not
+// rebuild, or whose parent is unknown, is fetched in full.
+
+class ClusterNode implements Blockchain.BlockListener, Blockchain.TransactionListener {
+
+    // Transactions submitted to a node are gossiped in batches
+    static final long TRANSACTION_FLUSH_MS = 20;
+
+    static final class Transactions {
+        final List<Transaction> transactions;
+
+        Transactions(List<Transaction> transactions) { this.transactions = transactions; }
+    }
+
+    static final class CompactBlock {
+        final Block header;
+        final long[] transactionIds;
+
+        CompactBlock(Block header, long[] transactionIds) {
+            this.header = header;
+            this.transactionIds = transactionIds;
+        }
+    }
+
+    static final class GetBlockTransactions {
+        final long id;
+        final String hash;
+        final int[] indexes;
+
+        GetBlockTransactions(long id, String hash, int[] indexes) {
+            this.id = id;
+            this.hash = hash;
+            this.indexes = indexes;
+        }
+    }
+
+    static final class BlockTransactions {
+        final String hash;
+        final List<Transaction> transactions;
+
+        BlockTransactions(String hash, List<Transaction> transactions) {
+            this.hash = hash;
+            this.transactions = transactions;
+        }
+    }
+
+    static final class GetBlock {
+        final long id;
+        final String hash;
+
+        GetBlock(long id, String hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+    }
+
+    // Carries the block's record as the block log would store it
+    static final class FullBlock {
+        final byte[] record;
+
+        FullBlock(byte[] record) { this.record = record; }
+    }
+
+    // A compact block waiting for the transactions this node did not have
+    private static final class PartialBlock {
+        final CompactBlock announcement;
+        final Transaction[] transactions;
+        final int[] missing;
+
+        PartialBlock(CompactBlock announcement, Transaction[] transactions, int[] missing) {
+            this.announcement = announcement;
+            this.transactions = transactions;
+            this.missing = missing;
+        }
+    }
+
+    private final int index;
+    private final Blockchain blockchain;
+    private final SimulatedNetwork network;
+    private final MetricsRegistry metrics;
+    private final boolean compactRelay;
+    private final ScheduledExecutorService inbox;
+    private final BlockCodec codec = new BlockCodec();
+
+    // Touched on the inbox thread only
+    private final Map<String, PartialBlock> partialBlocks = new HashMap<>();
+    private final Map<String, List<Block>> orphans = new HashMap<>();
+    private final Set<String> requestedParents = new HashSet<>();
+    private final List<Transaction> unsentTransactions = new ArrayList<>();
+
+    // Which peer a block came from, so it is not announced back to it
+    private final Map<String, Integer> blockSources = new ConcurrentHashMap<>();
+
+    ClusterNode(int index, Blockchain blockchain, SimulatedNetwork network, MetricsRegistry metrics,
+            boolean compactRelay) {
+        this.index = index;
+        this.blockchain = blockchain;
+        this.network = network;
+        this.metrics = metrics;
+        this.compactRelay = compactRelay;
+        inbox = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-node-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        network.register(index, (from, message) -> inbox.execute(() -> handle(from, message)));
+        blockchain.addBlockListener(this);
+        blockchain.addTransactionListener(this);
+        inbox.scheduleWithFixedDelay(this::flushTransactions, TRANSACTION_FLUSH_MS, TRANSACTION_FLUSH_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        blockchain.removeBlockListener(this);
+        blockchain.removeTransactionListener(this);
+        inbox.shutdownNow();
+    }
+
+    Blockchain getBlockchain() { return blockchain; }
+
+    @Override
+    public void transactionsAccepted(List<Transaction> transactions) {
+        inbox.execute(() -> unsentTransactions.addAll(transactions));
+    }
+
+    @Override
+    public void blockIncluded(Block block, long height) {
+        Integer source = blockSources.remove(block.getHash());
+        for (int peer : network.peersOf(index)) {
+            if (source != null && source == peer) { continue; }
+            if (compactRelay) {
+                sendCompact(peer, block);
+            } else {
+                sendFull(peer, block);
+            }
+        }
+    }
+
+    private void flushTransactions() {
+        if (unsentTransactions.isEmpty()) { return; }
+        gossip(new ArrayList<>(unsentTransactions), -1);
+        unsentTransactions.clear();
+    }
+
+    private void gossip(List<Transaction> transactions, int except) {
+        int size = Integer.BYTES;
+        for (Transaction transaction : transactions) {
+            size += BlockCodec.encodedSize(transaction);
+        }
+        for (int peer : network.peersOf(index)) {
+            if (peer != except) {
+                network.send(index, peer, new Transactions(transactions), size, "transactions");
+            }
+        }
+    }
+
+    private void handle(int from, Object message) {
+        if (message instanceof Transactions) {
+            onTransactions(from, ((Transactions) message).transactions);
+        } else if (message instanceof CompactBlock) {
+            onCompactBlock(from, (CompactBlock) message);
+        } else if (message instanceof GetBlockTransactions) {
+            onGetBlockTransactions(from, (GetBlockTransactions) message);
+        } else if (message instanceof BlockTransactions) {
+            onBlockTransactions(from, (BlockTransactions) message);
+        } else if (message instanceof GetBlock) {
+            onGetBlock(from, (GetBlock) message);
+        } else if (message instanceof FullBlock) {
+            onFullBlock(from, (FullBlock) message);
+        }
+    }
+
+    // Queued ones travel on, the others were known already or are invalid here
+    private void onTransactions(int from, List<Transaction> transactions) {
+        Rejection[] rejections = blockchain.addRelayedTransactions(transactions);
+        List<Transaction> queued = new ArrayList<>(transactions.size());
+        for (int i = 0; i < rejections.length; i++) {
+            if (rejections[i] == null) {
+                queued.add(transactions.get(i));
+            }
+        }
+        if (!queued.isEmpty()) {
+            gossip(queued, from);
+        }
+    }
+
+    private void onCompactBlock(int from, CompactBlock announcement) {
+        Block header = announcement.header;
+        if (partialBlocks.containsKey(header.getHash()) || blockchain.findBlock(header.getId(), header.getHash()) != null) {
+            return;
+        }
+        metrics.counter("relay.compact.received").increment();
+
+        Transaction[] transactions = blockchain.findKnownTransactions(announcement.transactionIds);
+        int[] missing = new int[transactions.length];
+        int nMissing = 0;
+        for (int i = 0; i < transactions.length; i++) {
+            if (transactions[i] == null) {
+                missing[nMissing++] = i;
+            }
+        }
+        if (nMissing == 0) {
+            metrics.counter("relay.compact.complete").increment();
+            rebuild(from, announcement, transactions);
+            return;
+        }
+
+        metrics.counter("relay.compact.missingTransactions").add(nMissing);
+        missing = Arrays.copyOf(missing, nMissing);
+        partialBlocks.put(header.getHash(), new PartialBlock(announcement, transactions, missing));
+        network.send(index, from, new GetBlockTransactions(header.getId(), header.getHash(), missing),
+                64 + Long.BYTES + Integer.BYTES * (1 + nMissing), "getBlockTransactions");
+    }
+
+    private void onGetBlockTransactions(int from, GetBlockTransactions request) {
+        Block block = blockchain.findBlock(request.id, request.hash);
+        if (block == null) { return; }
+
+        List<Transaction> transactions = new ArrayList<>(request.indexes.length);
+        int size = 64 + Integer.BYTES;
+        for (int i : request.indexes) {
+            Transaction transaction = block.getTransactions().get(i);
+            transactions.add(transaction);
+            size += BlockCodec.encodedSize(transaction);
+        }
+        network.send(index, from, new BlockTransactions(request.hash, transactions), size, "blockTransactions");
+    }
+
+    private void onBlockTransactions(int from, BlockTransactions response) {
+        PartialBlock partial = partialBlocks.remove(response.hash);
+        if (partial == null || response.transactions.size() != partial.missing.length) { return; }
+
+        for (int i = 0; i < partial.missing.length; i++) {
+            partial.transactions[partial.missing[i]] = response.transactions.get(i);
+        }
+        rebuild(from, partial.announcement, partial.transactions);
+    }
+
+    private void onGetBlock(int from, GetBlock request) {
+        Block block = blockchain.findBlock(request.id, request.hash);
+        if (block != null) {
+            sendFull(from, block);
+        }
+    }
+
+    private void onFullBlock(int from, FullBlock message) {
+        Block block;
+        try {
+            block = codec.decode(message.record);
+        } catch (IOException e) {
+            metrics.counter("relay.blocks.unreadable").increment();
+            return;
+        }
+        requestedParents.remove(block.getHash());
+        accept(from, block);
+    }
+
+    // Puts the announced block together; if the root does not match, an id stood for a
+    // different transaction here and the block is fetched whole
+    private void rebuild(int from, CompactBlock announcement, Transaction[] transactions) {
+        Block header = announcement.header;
+        List<Transaction> list = Arrays.asList(transactions);
+        if (!Arrays.equals(MerkleTree.root(list), header.getMerkleRoot())) {
+            metrics.counter("relay.compact.fallbacks").increment();
+            network.send(index, from, new GetBlock(header.getId(), header.getHash()), 64 + Long.BYTES, "getBlock");
+            return;
+        }
+
+        Block block = Block.restore(header.getId(), header.getTimestamp(), new ArrayList<>(list),
+                header.getPrevBlockHash(), header.getMerkleRoot(), header.getMineReward());
+        block.setHash(header.getHash());
+        block.setMagicNum(header.getMagicNum());
+        block.setTimeTookForMiningMs(header.getTimeTookForMiningMs());
+        block.setBits(header.getBits());
+        block.setMiner(Miner.restored(header.getMiner().getId()));
+        accept(from, block);
+    }
+
+    // Hands the block to the chain; an orphan waits for its parent, which is fetched from
+    // the peer that sent it, and blocks waiting for this one follow it in
+    private void accept(int from, Block block) {
+        blockSources.put(block.getHash(), from);
+        BlockStatus status = blockchain.acceptPeerBlock(block);
+        metrics.counter("relay.blocks." + status.name().toLowerCase()).increment();
+        if (status != BlockStatus.CONNECTED && status != BlockStatus.REORGANIZED) {
+            blockSources.remove(block.getHash());
+        }
+
+        if (status == BlockStatus.MISSING_PARENT) {
+            orphans.computeIfAbsent(block.getPrevBlockHash(), key -> new ArrayList<>()).add(block);
+            if (requestedParents.add(block.getPrevBlockHash())) {
+                network.send(index, from, new GetBlock(block.getId() - 1, block.getPrevBlockHash()),
+                        64 + Long.BYTES, "getBlock");
+            }
+            return;
+        }
+        if (status == BlockStatus.INVALID) {
+            orphans.remove(block.getHash());
+            return;
+        }
+
+        List<Block> children = orphans.remove(block.getHash());
+        if (children != null) {
+            children.forEach(child -> accept(from, child));
+        }
+    }
+
+    private void sendCompact(int peer, Block block) {
+        List<Transaction> transactions = block.getTransactions();
+        long[] ids = new long[transactions.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = transactions.get(i).getId();
+        }
+        network.send(index, peer, new CompactBlock(block.withoutTransactions(), ids),
+                BlockCodec.MAX_HEADER_SIZE + Long.BYTES * ids.length, "compactBlock");
+    }
+
+    private void sendFull(int peer, Block block) {
+        try {
+            byte[] record = BlockCodec.encode(block);
+            network.send(index, peer, new FullBlock(record), record.length, "block");
+        } catch (IOException e) {
+            metrics.counter("relay.blocks.unencodable").increment();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package blockchain;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per user postings of committed transfers, sent or received. Each posting is a
+// long packing the block height and the transaction's position in the block, and
+// a user's postings only ever grow at the end in height order, so a history page
+// is a binary search plus a sequential read.
+//
+// Only the thread appending blocks adds postings; readers may run concurrently.
+
+class HistoryIndex {
+    private static final int POSITION_BITS = 24;
+    private static final int INITIAL_POSTINGS = 4;
+
+    private static final class Postings {
+        private volatile long[] entries = new long[INITIAL_POSTINGS];
+        private volatile int size = 0;
+
+        void add(long posting) {
+            long[] current = entries;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+                entries = current;
+            }
+            current[size] = posting;
+            size = size + 1;
+        }
+    }
+
+    private final Map<Long, Postings> postings = new ConcurrentHashMap<>();
+
+    void commit(Block block, long height) {
+        int position = 0;
+        for (Transaction transaction : block.getTransactions()) {
+            long posting = height << POSITION_BITS | position++;
+            postingsOf(transaction.getFrom().getId()).add(posting);
+            postingsOf(transaction.getTo().getId()).add(posting);
+        }
+    }
+
+    // Drops the postings of the block at the given height, which must be the last one committed
+    void rollback(Block block, long height) {
+        long first = height << POSITION_BITS;
+        for (Transaction transaction : block.getTransactions()) {
+            truncate(postings.get(transaction.getFrom().getId()), first);
+            truncate(postings.get(transaction.getTo().getId()), first);
+        }
+    }
+
+    private static void truncate(Postings userPostings, long firstDropped) {
+        if (userPostings == null) { return; }
+        int size = userPostings.size;
+        while (size > 0 && userPostings.entries[size - 1] >= firstDropped) {
+            size--;
+        }
+        userPostings.size = size;
+    }
+
+    // Up to about limit postings of the user from fromHeight on, in chain order. A page
+    // never splits a block, so it can run past limit by the rest of its last block.
+    long[] page(long userId, long fromHeight, int limit) {
+        Postings userPostings = postings.get(userId);
+        if (userPostings == null || limit <= 0) { return new long[0]; }
+
+        int size = userPostings.size;
+        long[] entries = userPostings.entries;
+        int from = firstAtOrAfter(entries, size, fromHeight << POSITION_BITS);
+        int to = Math.min(size, from + limit);
+        while (to < size && heightOf(entries[to]) == heightOf(entries[to - 1])) {
+            to++;
+        }
+        return Arrays.copyOfRange(entries, from, to);
+    }
+
+    // Drops the postings of blocks below the height. Postings are swapped for trimmed copies,
+    // so readers holding the old ones are unaffected.
+    void pruneBelow(long height) {
+        postings.replaceAll((userId, userPostings) -> {
+            int from = firstAtOrAfter(userPostings.entries, userPostings.size, height << POSITION_BITS);
+            if (from == 0) { return userPostings; }
+            Postings trimmed = new Postings();
+            for (int i = from; i < userPostings.size; i++) {
+                trimmed.add(userPostings.entries[i]);
+            }
+            return trimmed;
+        });
+        postings.values().removeIf(userPostings -> userPostings.size == 0);
+    }
+
+    static long heightOf(long posting) {
+        return posting >>> POSITION_BITS;
+    }
+
+    static int positionOf(long posting) {
+        return (int) (posting & ((1 << POSITION_BITS) - 1));
+    }
+
+    private Postings postingsOf(long userId) {
+        return postings.computeIfAbsent(userId, id -> new Postings());
+    }
+
+    private static int firstAtOrAfter(long[] entries, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,22 @@
+package blockchain;
+
+import java.util.List;
+
+// One page of a user's transfer history, see Blockchain.getHistory
+public final class HistoryPage {
+    private final List<Transaction> transactions;
+    private final long nextHeight;
+
+    HistoryPage(List<Transaction> transactions, long nextHeight) {
+        this.transactions = transactions;
+        this.nextHeight = nextHeight;
+    }
+
+    // Transfers sent or received by the user, in chain order
+    public List<Transaction> getTransactions() { return transactions; }
+
+    // fromHeight of the following page, or -1 when this page reached the end of the history
+    public long getNextHeight() { return nextHeight; }
+
+    public boolean hasMore() { return nextHeight >= 0; }
+}
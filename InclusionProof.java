@@ -0,0 +1,25 @@
+package blockchain;
+
+// Evidence from a full node that a transaction is in the block at a given height, see
+// Blockchain.getInclusionProof and LightClient.verifyInclusion
+public final class InclusionProof {
+    private final long height;
+    private final String blockHash;
+    private final Transaction transaction;
+    private final MerkleTree.Branch branch;
+
+    InclusionProof(long height, String blockHash, Transaction transaction, MerkleTree.Branch branch) {
+        this.height = height;
+        this.blockHash = blockHash;
+        this.transaction = transaction;
+        this.branch = branch;
+    }
+
+    public long getHeight() { return height; }
+
+    public String getBlockHash() { return blockHash; }
+
+    public Transaction getTransaction() { return transaction; }
+
+    public MerkleTree.Branch getBranch() { return branch; }
+}
@@ -0,0 +1,145 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import blockchain.utils.SignatureScheme;
+
+// First stage of transaction ingestion: the stateless checks and the
+// signature verification, which need no shared state and are spread over a
+// dedicated verifier pool. Blockchain runs the ordered balance stage afterwards.
+
+class IngestionPipeline {
+    // A verifier pool with the thread count it was sized for. A replaced pool is retired and
+    // shut down once the last batch still running on it is done, so no batch meets a closed pool.
+    private static final class VerifierPool {
+        final ExecutorService executor;
+        final int threads;
+        int batchesRunning = 0;
+        boolean retired = false;
+
+        VerifierPool(int threads) {
+            this.threads = threads;
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "transaction-verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private VerifierPool verifiers;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile long firstAcceptedNs = 0;
+
+    IngestionPipeline(int verifierThreads) {
+        setVerifierThreads(verifierThreads);
+    }
+
+    synchronized void setVerifierThreads(int verifierThreads) {
+        if (verifiers != null) {
+            verifiers.retired = true;
+            if (verifiers.batchesRunning == 0) {
+                verifiers.executor.shutdown();
+            }
+        }
+        verifiers = new VerifierPool(verifierThreads);
+    }
+
+    synchronized int getVerifierThreads() {
+        return verifiers.threads;
+    }
+
+    // Stage one, result[i] is null when batch.get(i) passed; single transactions stay on the caller.
+    // Signatures are checked with the chain's scheme, a key of any other scheme is turned away.
+    Rejection[] verify(List<Transaction> batch, SignatureScheme scheme) {
+        Rejection[] verified = new Rejection[batch.size()];
+        VerifierPool pool;
+        synchronized (this) {
+            pool = verifiers;
+            pool.batchesRunning++;
+        }
+        try {
+            int nTasks = Math.min(pool.threads, batch.size());
+            if (nTasks <= 1) {
+                verifyRange(batch, scheme, verified, 0, 1);
+                return verified;
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<>(nTasks);
+            for (int i = 0; i < nTasks; i++) {
+                int first = i;
+                tasks.add(() -> {
+                    verifyRange(batch, scheme, verified, first, nTasks);
+                    return null;
+                });
+            }
+            for (Future<Void> done : pool.executor.invokeAll(tasks)) {
+                done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Arrays.fill(verified, Rejection.BAD_SIGNATURE);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            synchronized (this) {
+                if (--pool.batchesRunning == 0 && pool.retired) {
+                    pool.executor.shutdown();
+                }
+            }
+        }
+        return verified;
+    }
+
+    void recordOutcome(int nAccepted, int nRejected) {
+        if (nAccepted > 0 && firstAcceptedNs == 0) {
+            firstAcceptedNs = System.nanoTime();
+        }
+        accepted.add(nAccepted);
+        rejected.add(nRejected);
+    }
+
+    long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    // Accepted transactions per second since the first one went through
+    double getSustainedTps() {
+        long start = firstAcceptedNs;
+        if (start == 0) {
+            return 0;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return seconds <= 0 ? 0 : accepted.sum() / seconds;
+    }
+
+    private static void verifyRange(List<Transaction> batch, SignatureScheme scheme, Rejection[] verified,
+            int first, int step) {
+        for (int i = first; i < batch.size(); i += step) {
+            verified[i] = check(batch.get(i), scheme);
+        }
+    }
+
+    private static Rejection check(Transaction transaction, SignatureScheme scheme) {
+        if (transaction.getFrom() == transaction.getTo()) { return Rejection.SELF_TRANSFER; }
+        if (!transaction.getFrom().getPublicKey().equals(transaction.getPublicKey())) { return Rejection.KEY_MISMATCH; }
+        if (!scheme.getKeyAlgorithm().equals(transaction.getPublicKey().getAlgorithm())) { return Rejection.WRONG_SCHEME; }
+        if (!scheme.verify(transaction.getSigningBytes(), transaction.getSignature(), transaction.getPublicKey())) {
+            return Rejection.BAD_SIGNATURE;
+        }
+        return null;
+    }
+}
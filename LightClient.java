@@ -0,0 +1,166 @@
+package blockchain;
+
+import blockchain.utils.StringUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// Headers-only view of a chain for wallet-style processes. It keeps the proof of work
+// header of every block (see BlockHeader) and its hash, 136 bytes per block, in one
+// array. A header is taken when it links to the header before it, carries the next id,
+// is not stamped earlier than its parent, its bits are the target retargeting gives from
+// the headers before it and its hash meets that target. Of the header chains it is given
+// the client follows the longest; whether a transaction is in a block is then checked
+// with a merkle branch from a full node against that block's header. Chains whose
+// difficulty was pinned (Blockchain.pinDifficulty) do not retarget and are refused.
+
+public class LightClient {
+    private static final int ENTRY_SIZE = BlockHeader.SIZE + MerkleTree.HASH_SIZE;
+    private static final int PREV_HASH_OFFSET = 0;
+    private static final int MERKLE_ROOT_OFFSET = 32;
+    private static final int ID_OFFSET = 64;
+    private static final int TIMESTAMP_OFFSET = 72;
+    private static final int BITS_OFFSET = 92;
+    // Headers served again below the tip on every sync, enough to follow a full node's reorg
+    private static final int SYNC_OVERLAP = Blockchain.MAX_REORG_DEPTH;
+    private static final int SYNC_BATCH = 2000;
+
+    private byte[] entries = new byte[64 * ENTRY_SIZE];
+    private int length;
+
+    private LightClient() { }
+
+    public static LightClient newClient() {
+        return new LightClient();
+    }
+
+    // Takes consecutive headers, as served by Blockchain.getHeaders. The first one may start
+    // anywhere up to the current tip; headers matching the ones held are skipped, and the
+    // rest replace what follows them only if the result is longer. Returns whether the
+    // chain changed. Nothing is taken if any header fails its checks.
+    public synchronized boolean addHeaders(List<byte[]> headers) {
+        int first = 0;
+        while (first < headers.size() && matchesHeld(headers.get(first))) {
+            first++;
+        }
+        if (first == headers.size()) { return false; }
+
+        long forkLength = idOf(headers.get(first)) - 1;
+        if (forkLength < 0 || forkLength > length || forkLength + headers.size() - first <= length) { return false; }
+
+        byte[][] hashes = new byte[headers.size() - first][];
+        byte[] prevHash = forkLength == 0 ? new byte[MerkleTree.HASH_SIZE] : hashAt((int) forkLength - 1);
+        for (int i = first; i < headers.size(); i++) {
+            byte[] header = headers.get(i);
+            if (header.length != BlockHeader.SIZE || idOf(header) != forkLength + 1 + i - first) { return false; }
+            if (!Arrays.equals(prevHash, Arrays.copyOfRange(header, PREV_HASH_OFFSET, PREV_HASH_OFFSET + 32))) {
+                return false;
+            }
+            long height = forkLength + i - first;
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            if (height > 0 && fields.getLong(TIMESTAMP_OFFSET)
+                    < headerAt(height - 1, forkLength, headers, first).getLong(TIMESTAMP_OFFSET)) {
+                return false;
+            }
+            int bits = fields.getInt(BITS_OFFSET);
+            if (bits != expectedBits(height, forkLength, headers, first)) { return false; }
+            byte[] hash = StringUtils.sha256(header);
+            if (!Target.isMetBy(hash, bits)) { return false; }
+            hashes[i - first] = hash;
+            prevHash = hash;
+        }
+
+        length = (int) forkLength;
+        for (int i = first; i < headers.size(); i++) {
+            append(headers.get(i), hashes[i - first]);
+        }
+        return true;
+    }
+
+    // Catches up with a full node, starting a little below the tip so a reorg there is followed
+    public boolean sync(Blockchain fullNode) {
+        boolean changed = false;
+        long from = Math.max(0, getLength() - SYNC_OVERLAP);
+        while (from < fullNode.getLength()) {
+            List<byte[]> headers = fullNode.getHeaders(from, SYNC_BATCH);
+            if (headers.isEmpty() || !addHeaders(headers)) { break; }
+            changed = true;
+            from = getLength();
+        }
+        return changed;
+    }
+
+    // Whether the proof's block is on this client's chain and its branch leads from the
+    // transaction to that block's merkle root
+    public synchronized boolean verifyInclusion(InclusionProof proof) {
+        long height = proof.getHeight();
+        if (height < 0 || height >= length) { return false; }
+        if (!StringUtils.bytesToHex(hashAt((int) height)).equals(proof.getBlockHash())) { return false; }
+
+        int offset = (int) height * ENTRY_SIZE + MERKLE_ROOT_OFFSET;
+        byte[] root = Arrays.copyOfRange(entries, offset, offset + MerkleTree.HASH_SIZE);
+        return MerkleTree.verify(proof.getTransaction().getHash(), proof.getBranch(), root);
+    }
+
+    // Blocks on top of the proof's block including itself, 0 if the client does not hold it
+    public synchronized long getConfirmations(InclusionProof proof) {
+        return verifyInclusion(proof) ? length - proof.getHeight() : 0;
+    }
+
+    public synchronized long getLength() { return length; }
+
+    public synchronized String getTipHash() {
+        return length == 0 ? "0" : StringUtils.bytesToHex(hashAt(length - 1));
+    }
+
+    // Bytes held for the headers
+    public synchronized long getStoredBytes() { return (long) length * ENTRY_SIZE; }
+
+    private boolean matchesHeld(byte[] header) {
+        long id = idOf(header);
+        if (id < 1 || id > length) { return false; }
+        int offset = (int) (id - 1) * ENTRY_SIZE;
+        return Arrays.equals(entries, offset, offset + BlockHeader.SIZE, header, 0, header.length);
+    }
+
+    private void append(byte[] header, byte[] hash) {
+        if ((length + 1) * ENTRY_SIZE > entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        System.arraycopy(header, 0, entries, length * ENTRY_SIZE, BlockHeader.SIZE);
+        System.arraycopy(hash, 0, entries, length * ENTRY_SIZE + BlockHeader.SIZE, MerkleTree.HASH_SIZE);
+        length++;
+    }
+
+    // Redoes the node's retargeting (Blockchain.retarget) for the header at the given height
+    private int expectedBits(long height, long forkLength, List<byte[]> headers, int first) {
+        int window = (int) Math.min(Blockchain.RETARGET_WINDOW + 1, height);
+        int[] bits = new int[window];
+        long[] timestamps = new long[window];
+        for (int k = 0; k < window; k++) {
+            ByteBuffer header = headerAt(height - window + k, forkLength, headers, first);
+            bits[k] = header.getInt(BITS_OFFSET);
+            timestamps[k] = header.getLong(TIMESTAMP_OFFSET);
+        }
+        return Target.retarget(bits, timestamps, Blockchain.getFixedMiningTimeMs(), Blockchain.RETARGET_LIMIT);
+    }
+
+    // A header below the height where the headers being added start is held already,
+    // the others come from the batch
+    private ByteBuffer headerAt(long height, long forkLength, List<byte[]> headers, int first) {
+        if (height < forkLength) {
+            return ByteBuffer.wrap(entries, (int) height * ENTRY_SIZE, BlockHeader.SIZE).slice();
+        }
+        return ByteBuffer.wrap(headers.get(first + (int) (height - forkLength)));
+    }
+
+    private byte[] hashAt(int height) {
+        int offset = height * ENTRY_SIZE + BlockHeader.SIZE;
+        return Arrays.copyOfRange(entries, offset, offset + MerkleTree.HASH_SIZE);
+    }
+
+    private static long idOf(byte[] header) {
+        return header.length < ID_OFFSET + Long.BYTES ? -1 : ByteBuffer.wrap(header).getLong(ID_OFFSET);
+    }
+}
@@ -0,0 +1,269 @@
+package blockchain;
+
+import blockchain.user.User;
+import blockchain.utils.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Open-loop workload for capacity runs. Transaction i is due at start + i / targetTps
+// and its sender, receiver and amount come from a random stream seeded by (seed, i), so
+// a run offers the same workload whatever the number of sender threads. Latencies are
+// taken from the due time rather than from the actual send, so a node that falls
+// behind cannot hide its backlog by slowing the generator down.
+
+public class LoadGenerator implements Blockchain.BlockListener {
+
+    public static final class Report {
+        private final long durationMs;
+        private final long offered;
+        private final long accepted;
+        private final long included;
+        private final long persisted;
+        private final double sustainedTps;
+        private final MetricsRegistry.Histogram includedLatency;
+        private final MetricsRegistry.Histogram persistedLatency;
+
+        private Report(long durationMs, long offered, long accepted, long included, long persisted,
+                double sustainedTps, MetricsRegistry.Histogram includedLatency,
+                MetricsRegistry.Histogram persistedLatency) {
+            this.durationMs = durationMs;
+            this.offered = offered;
+            this.accepted = accepted;
+            this.included = included;
+            this.persisted = persisted;
+            this.sustainedTps = sustainedTps;
+            this.includedLatency = includedLatency;
+            this.persistedLatency = persistedLatency;
+        }
+
+        public long getOffered() { return offered; }
+
+        public long getAccepted() { return accepted; }
+
+        public long getIncluded() { return included; }
+
+        public long getPersisted() { return persisted; }
+
+        // Included transactions per second, from the first due time to the last inclusion
+        public double getSustainedTps() { return sustainedTps; }
+
+        public MetricsRegistry.Histogram getIncludedLatency() { return includedLatency; }
+
+        public MetricsRegistry.Histogram getPersistedLatency() { return persistedLatency; }
+
+        @Override
+        public String toString() {
+            return String.format("Offered %d transactions in %d ms (%.1f/s), accepted %d, included %d, persisted %d%n",
+                    offered, durationMs, offered * 1000.0 / Math.max(1, durationMs), accepted, included, persisted)
+                    + String.format("Sustained throughput: %.1f transactions/s%n", sustainedTps)
+                    + latencyLine("submit -> included ", includedLatency)
+                    + latencyLine("submit -> persisted", persistedLatency);
+        }
+
+        private static String latencyLine(String label, MetricsRegistry.Histogram histogram) {
+            return String.format("%s p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms%n", label,
+                    histogram.getPercentileMs(0.5), histogram.getPercentileMs(0.99),
+                    histogram.getPercentileMs(0.999), histogram.getMaxMs());
+        }
+    }
+
+    private static final long SEQUENCE_MIX = 0x9E3779B97F4A7C15L;
+
+    private final Blockchain blockchain;
+    private final List<User> users;
+    private final long seed;
+
+    private double targetTps = 100;
+    private double skew = 0;
+    private int maxAmount = 10;
+    private int senderThreads = Runtime.getRuntime().availableProcessors();
+
+    // Due time of every transaction still waiting for its block, and of every block
+    // still waiting to be stored
+    private final Map<Long, Long> awaitingInclusion = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, long[]> awaitingPersistence = new ConcurrentSkipListMap<>();
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder included = new LongAdder();
+    private final LongAdder persisted = new LongAdder();
+    private final AtomicLong lastInclusionNs = new AtomicLong();
+    private MetricsRegistry.Histogram includedLatency;
+    private MetricsRegistry.Histogram persistedLatency;
+
+    private LoadGenerator(Blockchain blockchain, List<User> users, long seed) {
+        if (users.size() < 2) {
+            throw new IllegalArgumentException("A workload needs at least two users");
+        }
+        this.blockchain = blockchain;
+        this.users = new ArrayList<>(users);
+        this.seed = seed;
+    }
+
+    public static LoadGenerator with(Blockchain blockchain, List<User> users, long seed) {
+        return new LoadGenerator(blockchain, users, seed);
+    }
+
+    public void setTargetTps(double targetTps) {
+        if (targetTps <= 0) {
+            throw new IllegalArgumentException("Target rate must be positive: " + targetTps);
+        }
+        this.targetTps = targetTps;
+    }
+
+    // Zipf exponent for picking senders and receivers: 0 is uniform, 1 makes the first user
+    // in the list about as busy as the next ten together
+    public void setSkew(double skew) {
+        if (skew < 0) {
+            throw new IllegalArgumentException("Skew must not be negative: " + skew);
+        }
+        this.skew = skew;
+    }
+
+    // Amounts are drawn from 1..maxAmount
+    public void setMaxAmount(int maxAmount) {
+        this.maxAmount = Math.max(1, maxAmount);
+    }
+
+    public void setSenderThreads(int senderThreads) {
+        this.senderThreads = Math.max(1, senderThreads);
+    }
+
+    // Offers transactions for durationMs, then waits up to drainMs for the accepted ones to be
+    // included and stored. Latencies also go to the load.latency.* histograms of the node.
+    public Report run(long durationMs, long drainMs) throws InterruptedException {
+        includedLatency = new MetricsRegistry.Histogram();
+        persistedLatency = new MetricsRegistry.Histogram();
+        for (LongAdder counter : new LongAdder[] { offered, accepted, included, persisted }) {
+            counter.reset();
+        }
+        lastInclusionNs.set(0);
+        double[] cumulativeWeights = cumulativeWeights(users.size(), skew);
+        long intervalNs = (long) (TimeUnit.SECONDS.toNanos(1) / targetTps);
+        long count = TimeUnit.MILLISECONDS.toNanos(durationMs) / Math.max(1, intervalNs);
+
+        blockchain.addBlockListener(this);
+        long startNs = System.nanoTime();
+        try {
+            List<Thread> senders = new ArrayList<>(senderThreads);
+            for (int k = 0; k < senderThreads; k++) {
+                int first = k;
+                Thread sender = new Thread(() -> send(first, count, startNs, intervalNs, cumulativeWeights),
+                        "load-sender-" + k);
+                sender.setDaemon(true);
+                senders.add(sender);
+                sender.start();
+            }
+            try {
+                for (Thread sender : senders) {
+                    sender.join();
+                }
+            } finally {
+                senders.forEach(Thread::interrupt);
+            }
+
+            long drainUntilNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMs);
+            while ((!awaitingInclusion.isEmpty() || !awaitingPersistence.isEmpty())
+                    && System.nanoTime() < drainUntilNs) {
+                Thread.sleep(10);
+            }
+        } finally {
+            blockchain.removeBlockListener(this);
+        }
+
+        long lastNs = Math.max(lastInclusionNs.get(), startNs + 1);
+        double sustainedTps = included.sum() / ((lastNs - startNs) / 1e9);
+        return new Report(durationMs, offered.sum(), accepted.sum(), included.sum(), persisted.sum(),
+                sustainedTps, includedLatency, persistedLatency);
+    }
+
+    // Sender k owns the transactions k, k + senderThreads, k + 2 * senderThreads, ...
+    private void send(int first, long count, long startNs, long intervalNs, double[] cumulativeWeights) {
+        for (long i = first; i < count; i += senderThreads) {
+            long dueNs = startNs + i * intervalNs;
+            long waitNs;
+            while ((waitNs = dueNs - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNs);
+                if (Thread.interrupted()) { return; }
+            }
+
+            SplittableRandom random = new SplittableRandom(seed + i * SEQUENCE_MIX);
+            int from = pick(random, cumulativeWeights);
+            int to = pick(random, cumulativeWeights);
+            while (to == from) {
+                to = pick(random, cumulativeWeights);
+            }
+            Transaction transaction = users.get(from).newTransaction(users.get(to), 1 + random.nextInt(maxAmount));
+
+            offered.increment();
+            awaitingInclusion.put(transaction.getId(), dueNs);
+            if (blockchain.addTransaction(transaction)) {
+                accepted.increment();
+            } else {
+                awaitingInclusion.remove(transaction.getId());
+            }
+        }
+    }
+
+    @Override
+    public void blockIncluded(Block block, long height) {
+        long nowNs = System.nanoTime();
+        long[] dueTimes = new long[block.getTransactions().size()];
+        int n = 0;
+        for (Transaction transaction : block.getTransactions()) {
+            Long dueNs = awaitingInclusion.remove(transaction.getId());
+            if (dueNs != null) {
+                includedLatency.record(nowNs - dueNs);
+                blockchain.getMetrics().histogram("load.latency.included").record(nowNs - dueNs);
+                dueTimes[n++] = dueNs;
+            }
+        }
+        if (n == 0) { return; }
+
+        included.add(n);
+        lastInclusionNs.accumulateAndGet(nowNs, Math::max);
+        awaitingPersistence.put(height, Arrays.copyOf(dueTimes, n));
+    }
+
+    @Override
+    public void blocksPersisted(long persistedLength) {
+        long nowNs = System.nanoTime();
+        Map.Entry<Long, long[]> entry;
+        while ((entry = awaitingPersistence.firstEntry()) != null && entry.getKey() < persistedLength) {
+            if (awaitingPersistence.remove(entry.getKey()) == null) { continue; }
+            for (long dueNs : entry.getValue()) {
+                persistedLatency.record(nowNs - dueNs);
+                blockchain.getMetrics().histogram("load.latency.persisted").record(nowNs - dueNs);
+            }
+            persisted.add(entry.getValue().length);
+        }
+    }
+
+    // Normalised running sums of 1 / rank^skew, searched with a uniform draw
+    private static double[] cumulativeWeights(int n, double skew) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1 / Math.pow(rank + 1, skew);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(SplittableRandom random, double[] cumulativeWeights) {
+        int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, cumulativeWeights.length - 1);
+    }
+}
@@ -1,27 +1,89 @@
 package blockchain;
 
+import blockchain.user.User;
 import blockchain.user.UserFactory;
+import blockchain.utils.SignatureUtils;
+import blockchain.utils.ThreadUtils;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Main {
 
     // UserFactory - User related methods
     // Executors - public class
+    //
+    // Options: --users=N and --miners=N (10 each by default), --scheme=RSA|Ed25519, and
+    // --virtual-threads to run users on virtual threads for simulations with many wallets.
+    // --tps=N replaces the random users with a LoadGenerator offering N transactions per
+    // second for --duration=S seconds (60), seeded by --seed=N (1), with Zipf --skew=X (0).
+    // Blocks hold at most --block-transactions=N transactions and --block-bytes=N bytes (under 16 MB),
+    // picked by --selection=FIFO|LARGEST_AMOUNT_FIRST|SENDER_ROUND_ROBIN. Blocks are stored
+    // behind the chain and forced to disk per --durability=NONE|PER_BATCH|PER_BLOCK (PER_BATCH).
+    // --nodes=N runs N nodes in this JVM instead, see runCluster.
     public static void main(String[] args) {
-        var driver = BlockchainDriver.newDriver();
+        int noOfUsers = intOption(args, "--users=", 10);
+        int noOfMiners = intOption(args, "--miners=", 10);
+        String scheme = stringOption(args, "--scheme=", SignatureUtils.RSA.getName());
+        boolean virtualThreads = List.of(args).contains("--virtual-threads");
+        String targetTps = stringOption(args, "--tps=", null);
+        int noOfNodes = intOption(args, "--nodes=", 1);
+        if (noOfNodes > 1) {
+            runCluster(args, noOfNodes, noOfUsers, noOfMiners, scheme);
+            return;
+        }
+
+        var driver = BlockchainDriver.newDriver(SignatureUtils.forName(scheme));
+        driver.setDurability(BlockchainDriver.Durability.valueOf(stringOption(args, "--durability=", "PER_BATCH")));
         var blockchain = driver.getBlockchain();
         var userFactory = UserFactory.with(blockchain);
+        blockchain.setBlockAssemblyPolicy(BlockAssemblyPolicy.with(
+                intOption(args, "--block-transactions=", BlockAssemblyPolicy.DEFAULT_MAX_TRANSACTIONS),
+                intOption(args, "--block-bytes=", BlockAssemblyPolicy.DEFAULT_MAX_BYTES),
+                BlockAssemblyPolicy.Selection.valueOf(stringOption(args, "--selection=", "FIFO"))));
+
+        // Metrics are readable over JMX, and dumped to stderr if -Dblockchain.metricsDumpMs is set
+        blockchain.getMetrics().exposeOverJmx("main");
+        Long metricsDumpMs = Long.getLong("blockchain.metricsDumpMs");
+        if (metricsDumpMs != null) {
+            blockchain.getMetrics().startReporting(metricsDumpMs, System.err::print);
+        }
+
+        // Users spend their lives sleeping between transactions, so with --virtual-threads
+        // each one gets a virtual thread. Miners stay on platform threads: their hashing
+        // runs on the mining engine's per-core workers and must not pin carrier threads.
+        ExecutorService userExecutor = virtualThreads ? ThreadUtils.newVirtualThreadPerTaskExecutor() : null;
+        if (virtualThreads && userExecutor == null) {
+            System.err.println("Virtual threads need Java 21, running users on platform threads");
+        }
+        if (userExecutor == null) {
+            userExecutor = Executors.newFixedThreadPool(noOfUsers);
+        }
+        ExecutorService minerExecutor = Executors.newFixedThreadPool(noOfMiners);
 
-        // Creates a thread pool that reuses a fixed number of
-        // threads operating off a shared unbounded queue.
-        var executor = Executors.newFixedThreadPool(20);
-        for (int i = 0; i < 10; i++) {
-            executor.submit(userFactory.newUser());
+        // Key generation dominates wallet creation, so wallets are created in parallel
+        List<User> users = IntStream.range(0, noOfUsers).parallel()
+                .mapToObj(i -> userFactory.newUser())
+                .collect(Collectors.toList());
+        for (int i = 0; i < noOfMiners; i++) {
+            minerExecutor.submit(userFactory.newMiner());
         }
-        for (int i = 0; i < 10; i++) {
-            executor.submit(userFactory.newMiner());
+
+        if (targetTps != null) {
+            runLoad(blockchain, users, args, Double.parseDouble(targetTps));
+            userExecutor.shutdownNow();
+            minerExecutor.shutdownNow();
+            awaitStored(blockchain);
+            System.out.print("\nMetrics:\n" + blockchain.getMetrics().dump());
+            return;
         }
+        users.forEach(userExecutor::submit);
 
         // Number of miners = 15
         for (int i = 0; i < 15; i++) {
@@ -36,7 +98,112 @@ public class Main {
             System.out.print(i < 14 ? "\n" : "");
         }
 
-        executor.shutdownNow();
+        userExecutor.shutdownNow();
+        minerExecutor.shutdownNow();
+        awaitStored(blockchain);
+        System.out.print("\nMetrics:\n" + blockchain.getMetrics().dump());
+    }
+
+    // The block writer runs behind the chain, let it catch up before the JVM exits
+    private static void awaitStored(Blockchain blockchain) {
+        try {
+            if (!blockchain.awaitDurableHeight(blockchain.getLength() - 1, 10_000)) {
+                System.err.println("Not every block was stored before exiting");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void runLoad(Blockchain blockchain, List<User> users, String[] args, double targetTps) {
+        LoadGenerator generator = LoadGenerator.with(blockchain, users, Long.parseLong(stringOption(args, "--seed=", "1")));
+        generator.setTargetTps(targetTps);
+        generator.setSkew(Double.parseDouble(stringOption(args, "--skew=", "0")));
+        long durationMs = intOption(args, "--duration=", 60) * 1000L;
+        try {
+            // Allow a few blocks after the last transaction for the tail to be mined and stored
+            LoadGenerator.Report report = generator.run(durationMs, 10 * Blockchain.getFixedMiningTimeMs());
+            System.out.print(report);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Nodes linked with --latency=MS (50) and --bandwidth=BYTES per second (1000000), --peers=N
+    // each (2), sharing --miners between them; --full-blocks turns compact relay off and
+    // --difficulty=N pins the difficulty. Every node gets a LoadGenerator with its share of --tps (100).
+    private static void runCluster(String[] args, int noOfNodes, int noOfUsers, int noOfMiners, String scheme) {
+        Cluster cluster;
+        try {
+            // Nodes start from empty chains, so the run does not depend on earlier ones
+            cluster = Cluster.with(noOfNodes, Files.createTempDirectory("blockchain-cluster").toString(),
+                    SignatureUtils.forName(scheme));
+        } catch (IOException e) {
+            System.err.println("Cannot create the cluster's data directory: " + e.getMessage());
+            return;
+        }
+        cluster.setLatencyMs(intOption(args, "--latency=", 50));
+        cluster.setBandwidth(Long.parseLong(stringOption(args, "--bandwidth=", "1000000")));
+        cluster.setPeersPerNode(intOption(args, "--peers=", 2));
+        cluster.setMinersPerNode(Math.max(1, noOfMiners / noOfNodes));
+        cluster.setCompactRelay(!List.of(args).contains("--full-blocks"));
+        String difficulty = stringOption(args, "--difficulty=", null);
+        if (difficulty != null) {
+            cluster.pinDifficulty(Integer.parseInt(difficulty));
+        }
+
+        var userFactory = UserFactory.with(cluster.getNodes().get(0));
+        List<User> users = IntStream.range(0, noOfUsers).parallel()
+                .mapToObj(i -> userFactory.newUser())
+                .collect(Collectors.toList());
+        cluster.start();
+
+        double targetTps = Double.parseDouble(stringOption(args, "--tps=", "100"));
+        long seed = Long.parseLong(stringOption(args, "--seed=", "1"));
+        long durationMs = intOption(args, "--duration=", 60) * 1000L;
+        List<Thread> runs = new ArrayList<>();
+        for (int i = 0; i < noOfNodes; i++) {
+            Blockchain node = cluster.getNodes().get(i);
+            LoadGenerator generator = LoadGenerator.with(node, users, seed + i);
+            generator.setTargetTps(targetTps / noOfNodes);
+            generator.setSkew(Double.parseDouble(stringOption(args, "--skew=", "0")));
+            generator.setSenderThreads(1);
+            int nodeIndex = i;
+            Thread run = new Thread(() -> {
+                try {
+                    LoadGenerator.Report report = generator.run(durationMs, 10 * Blockchain.getFixedMiningTimeMs());
+                    System.out.print("Node " + nodeIndex + ":\n" + report);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "load-node-" + i);
+            runs.add(run);
+            run.start();
+        }
+        try {
+            for (Thread run : runs) {
+                run.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.print("Cluster:\n" + cluster.report());
+        cluster.shutdown();
+        System.out.print("\nMetrics:\n" + cluster.getMetrics().dump());
+    }
+
+    private static int intOption(String[] args, String prefix, int defaultValue) {
+        return Integer.parseInt(stringOption(args, prefix, Integer.toString(defaultValue)));
+    }
+
+    private static String stringOption(String[] args, String prefix, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
     }
 
     private static void printBlock(Block block) {
@@ -50,30 +217,22 @@ public class Main {
         System.out.println("Hash of the block: \n" + block.getHash());
         System.out.println("Block data: " + extractTransactions(block));
         System.out.printf("Block was generating for %d seconds\n", block.getTimeTookForMiningMs() / 1000);
-        System.out.println(nValueStatus(block));
+        System.out.println(difficultyStatus(block));
     }
 
-    private static int nValue = 0;
-    // Current Status of the block miner is executing
-    private static String nValueStatus(Block block) {
-        long timeTook = block.getTimeTookForMiningMs();
-        int fixedMiningTime = Blockchain.getFixedMiningTimeMs();
-        int acceptableDeviation = Blockchain.getAcceptableDeviationInMiningTimeMs();
-
-        if (timeTook >= (fixedMiningTime - acceptableDeviation)
-                && timeTook <= (fixedMiningTime + acceptableDeviation)) {
-            return "N stays the same";
-        }
-
-        if (timeTook < (fixedMiningTime - acceptableDeviation)) {
-            return "N was increased to " + ++nValue;
+    private static int previousBits = Target.MAX_BITS;
+    // How the target moved since the block printed before
+    private static String difficultyStatus(Block block) {
+        double before = Target.difficulty(previousBits);
+        double after = Target.difficulty(block.getBits());
+        previousBits = block.getBits();
+        if (after > before) {
+            return String.format("Difficulty was raised to %.1f", after);
         }
-
-        if (nValue == 0) {
-            return "N stays the same";
+        if (after < before) {
+            return String.format("Difficulty was lowered to %.1f", after);
         }
-        nValue--;
-        return "N was decreased by 1";
+        return String.format("Difficulty stays at %.1f", after);
     }
 
     private static String extractTransactions(Block block) {
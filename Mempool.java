@@ -0,0 +1,255 @@
+package blockchain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+// Bounded pool of accepted transactions waiting for a block.
+//
+// Transactions are kept in one FIFO lane per sender, so a sender's transactions
+// always leave in the order they were accepted. Lanes are ordered by the
+// priority of their head transaction, and drain(k) pops the k best heads, so
+// building a template costs O(k log senders) no matter how full the pool is.
+// In round-robin mode a drain takes one transaction per sender and round, so a
+// busy sender cannot fill a block on its own. Entries older than the max age
+// are dropped, oldest first. Blocks from peers take their transactions out
+// wherever they sit in a lane, and so does evicting the transfers that relied
+// on an evicted one.
+
+class Mempool {
+
+    interface EvictionListener {
+        void evicted(Transaction transaction);
+    }
+
+    // Oldest accepted transaction first
+    static final Comparator<Transaction> OLDEST_FIRST = Comparator.comparingLong(Transaction::getId);
+    static final Comparator<Transaction> LARGEST_AMOUNT_FIRST =
+            Comparator.comparingInt(Transaction::getAmount).reversed().thenComparingLong(Transaction::getId);
+
+    private static final class Entry {
+        final Transaction transaction;
+        final long admittedMs;
+
+        Entry(Transaction transaction, long admittedMs) {
+            this.transaction = transaction;
+            this.admittedMs = admittedMs;
+        }
+    }
+
+    private static final class Lane {
+        final long senderId;
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+        Lane(long senderId) {
+            this.senderId = senderId;
+        }
+    }
+
+    private final int capacity;
+    private final long maxAgeMs;
+    private final EvictionListener evictionListener;
+    private final Map<Long, Lane> lanes;
+    private final Map<Long, Entry> queued;
+    private TreeSet<Lane> lanesByPriority;
+    private boolean roundRobin;
+    private final ArrayDeque<Entry> arrivals;
+    private int size;
+    private long offers;
+
+    Mempool(int capacity, long maxAgeMs, Comparator<Transaction> priority, EvictionListener evictionListener) {
+        this.capacity = capacity;
+        this.maxAgeMs = maxAgeMs;
+        this.evictionListener = evictionListener;
+        lanes = new HashMap<>();
+        queued = new HashMap<>();
+        lanesByPriority = lanesOrderedBy(priority);
+        roundRobin = false;
+        arrivals = new ArrayDeque<>();
+        size = 0;
+        offers = 0;
+    }
+
+    // Reorders the queued lanes; lanes keep their own FIFO order whatever the priority
+    synchronized void setOrder(Comparator<Transaction> priority, boolean roundRobin) {
+        TreeSet<Lane> reordered = lanesOrderedBy(priority);
+        reordered.addAll(lanesByPriority);
+        lanesByPriority = reordered;
+        this.roundRobin = roundRobin;
+    }
+
+    private static TreeSet<Lane> lanesOrderedBy(Comparator<Transaction> priority) {
+        return new TreeSet<>(Comparator.<Lane, Transaction>comparing(
+                lane -> lane.entries.peekFirst().transaction, priority).thenComparingLong(lane -> lane.senderId));
+    }
+
+    // False when the pool is full even after dropping expired entries
+    synchronized boolean offer(Transaction transaction, long nowMs) {
+        if (size >= capacity) {
+            expire(nowMs);
+            if (size >= capacity) { return false; }
+        }
+
+        Entry entry = new Entry(transaction, nowMs);
+        long senderId = transaction.getFrom().getId();
+        Lane lane = lanes.get(senderId);
+        if (lane == null) {
+            lane = new Lane(senderId);
+            lanes.put(senderId, lane);
+        }
+
+        boolean wasIdle = lane.entries.isEmpty();
+        lane.entries.addLast(entry);
+        if (wasIdle) {
+            lanesByPriority.add(lane);
+        }
+        arrivals.addLast(entry);
+        queued.put(transaction.getId(), entry);
+        size++;
+        offers++;
+        return true;
+    }
+
+    synchronized Transaction get(long id) {
+        Entry entry = queued.get(id);
+        return entry == null ? null : entry.transaction;
+    }
+
+    // Takes the transaction out of its lane, false if it is not queued
+    synchronized boolean remove(long id) {
+        Entry entry = queued.get(id);
+        if (entry == null) { return false; }
+        unqueue(entry);
+        return true;
+    }
+
+    // Takes the sender's most recently queued transaction out of its lane, null if it has none
+    synchronized Transaction removeNewest(long senderId) {
+        Lane lane = lanes.get(senderId);
+        if (lane == null) { return null; }
+        Entry entry = lane.entries.peekLast();
+        unqueue(entry);
+        return entry.transaction;
+    }
+
+    // Puts transactions that already left the pool back in front of their senders' lanes,
+    // in list order, as when a block they went into is dropped. Capacity is not checked,
+    // they were counted against it before.
+    synchronized void restore(List<Transaction> transactions, long nowMs) {
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            Transaction transaction = transactions.get(i);
+            if (queued.containsKey(transaction.getId())) { continue; }
+
+            Entry entry = new Entry(transaction, nowMs);
+            long senderId = transaction.getFrom().getId();
+            Lane lane = lanes.computeIfAbsent(senderId, Lane::new);
+            if (!lane.entries.isEmpty()) {
+                lanesByPriority.remove(lane);
+            }
+            lane.entries.addFirst(entry);
+            lanesByPriority.add(lane);
+            arrivals.addLast(entry);
+            queued.put(transaction.getId(), entry);
+            size++;
+        }
+    }
+
+    // Removes and returns up to max transactions in priority order. A head the admit check
+    // turns down stays queued, and so does the rest of its sender's lane for this drain.
+    synchronized List<Transaction> drain(int max, Predicate<Transaction> admit, long nowMs) {
+        expire(nowMs);
+
+        List<Transaction> drained = new ArrayList<>(Math.min(max, size));
+        List<Lane> nextRound = new ArrayList<>();
+        List<Lane> setAside = new ArrayList<>();
+        while (drained.size() < max) {
+            if (lanesByPriority.isEmpty()) {
+                if (nextRound.isEmpty()) { break; }
+                lanesByPriority.addAll(nextRound);
+                nextRound.clear();
+            }
+
+            Lane lane = lanesByPriority.pollFirst();
+            if (!admit.test(lane.entries.peekFirst().transaction)) {
+                setAside.add(lane);
+                continue;
+            }
+            Transaction transaction = lane.entries.pollFirst().transaction;
+            queued.remove(transaction.getId());
+            drained.add(transaction);
+            size--;
+            if (roundRobin && !lane.entries.isEmpty()) {
+                nextRound.add(lane);
+            } else {
+                requeue(lane);
+            }
+        }
+        lanesByPriority.addAll(nextRound);
+        lanesByPriority.addAll(setAside);
+
+        while (!arrivals.isEmpty() && !isQueued(arrivals.peekFirst())) {
+            arrivals.pollFirst();
+        }
+        return drained;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Transactions accepted so far, it moves whenever a new one is queued
+    synchronized long getOffers() {
+        return offers;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    // Drops entries admitted more than maxAgeMs ago
+    private void expire(long nowMs) {
+        long cutoff = nowMs - maxAgeMs;
+        while (!arrivals.isEmpty() && arrivals.peekFirst().admittedMs < cutoff) {
+            Entry entry = arrivals.pollFirst();
+            if (!isQueued(entry)) { continue; }
+
+            unqueue(entry);
+            evictionListener.evicted(entry.transaction);
+        }
+    }
+
+    private void unqueue(Entry entry) {
+        queued.remove(entry.transaction.getId());
+        Lane lane = lanes.get(entry.transaction.getFrom().getId());
+        boolean wasHead = lane.entries.peekFirst() == entry;
+        if (wasHead) {
+            lanesByPriority.remove(lane);
+        }
+        lane.entries.remove(entry);
+        size--;
+        if (wasHead || lane.entries.isEmpty()) {
+            requeue(lane);
+        }
+    }
+
+    private void requeue(Lane lane) {
+        if (lane.entries.isEmpty()) {
+            lanes.remove(lane.senderId);
+        } else {
+            lanesByPriority.add(lane);
+        }
+    }
+
+    private boolean isQueued(Entry entry) {
+        return queued.get(entry.transaction.getId()) == entry;
+    }
+}
@@ -0,0 +1,129 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import blockchain.utils.*;
+
+// Merkle commitment over the transactions of a block. Leaves are the
+// per-transaction hashes, an odd node at the end of a level is paired with
+// itself, and the root of an empty block is all zeros. Big blocks hash their
+// leaves and wide levels in parallel.
+//
+// A branch holds the sibling of every node on the way from one leaf to the root,
+// so anyone with the root can check that a transaction is in the block from
+// log2(n) hashes, without the other transactions.
+
+public class MerkleTree {
+    public static final int HASH_SIZE = 32;
+    private static final int PARALLEL_THRESHOLD = 1024;
+
+    public static final class Branch {
+        private final int index;
+        private final int leafCount;
+        private final byte[][] siblings;
+
+        private Branch(int index, int leafCount, byte[][] siblings) {
+            this.index = index;
+            this.leafCount = leafCount;
+            this.siblings = siblings;
+        }
+
+        // Position of the transaction in its block
+        public int getIndex() { return index; }
+
+        public int getLeafCount() { return leafCount; }
+
+        // Bytes a full node sends for the branch
+        public int getSize() { return 2 * Integer.BYTES + siblings.length * HASH_SIZE; }
+    }
+
+    private MerkleTree() { }
+
+    public static byte[] root(List<Transaction> transactions) {
+        int n = transactions.size();
+        if (n == 0) {
+            return new byte[HASH_SIZE];
+        }
+
+        byte[][] level = new byte[n][];
+        Transaction[] leaves = transactions.toArray(new Transaction[0]);
+        range(n).forEach(i -> level[i] = leaves[i].getHash());
+        return rootOfLevel(level);
+    }
+
+    // Branch of the transaction at the given position
+    public static Branch branch(List<Transaction> transactions, int index) {
+        int n = transactions.size();
+        if (index < 0 || index >= n) {
+            throw new IndexOutOfBoundsException("No transaction " + index + " in a block of " + n);
+        }
+
+        byte[][] level = new byte[n][];
+        Transaction[] leaves = transactions.toArray(new Transaction[0]);
+        range(n).forEach(i -> level[i] = leaves[i].getHash());
+        List<byte[]> siblings = new ArrayList<>();
+        byte[][] current = level;
+        for (int position = index; current.length > 1; position /= 2) {
+            int sibling = position ^ 1;
+            siblings.add(sibling < current.length ? current[sibling] : current[position]);
+            current = nextLevel(current);
+        }
+        return new Branch(index, n, siblings.toArray(new byte[0][]));
+    }
+
+    // Whether the branch leads from the leaf hash to the root. The last node of an odd
+    // level must be paired with itself, and the branch must be exactly as deep as a tree
+    // of its leaf count.
+    public static boolean verify(byte[] leaf, Branch branch, byte[] root) {
+        if (branch.index < 0 || branch.index >= branch.leafCount) { return false; }
+
+        byte[] hash = leaf;
+        int position = branch.index;
+        int depth = 0;
+        for (int width = branch.leafCount; width > 1; width = (width + 1) / 2) {
+            if (depth == branch.siblings.length) { return false; }
+            byte[] sibling = branch.siblings[depth++];
+            if ((position & 1) == 1) {
+                hash = hashPair(sibling, hash);
+            } else if (position == width - 1 && !Arrays.equals(sibling, hash)) {
+                return false;
+            } else {
+                hash = hashPair(hash, sibling);
+            }
+            position /= 2;
+        }
+        return depth == branch.siblings.length && Arrays.equals(hash, root);
+    }
+
+    private static byte[] rootOfLevel(byte[][] level) {
+        while (level.length > 1) {
+            level = nextLevel(level);
+        }
+        return level[0];
+    }
+
+    private static byte[][] nextLevel(byte[][] current) {
+        byte[][] next = new byte[(current.length + 1) / 2][];
+        range(next.length).forEach(i -> {
+            byte[] left = current[2 * i];
+            byte[] right = 2 * i + 1 < current.length ? current[2 * i + 1] : left;
+            next[i] = hashPair(left, right);
+        });
+        return next;
+    }
+
+    static byte[] hashPair(byte[] left, byte[] right) {
+        byte[] pair = new byte[2 * HASH_SIZE];
+        System.arraycopy(left, 0, pair, 0, HASH_SIZE);
+        System.arraycopy(right, 0, pair, HASH_SIZE, HASH_SIZE);
+        return StringUtils.sha256(pair);
+    }
+
+    private static IntStream range(int n) {
+        IntStream indexes = IntStream.range(0, n);
+        return n >= PARALLEL_THRESHOLD ? indexes.parallel() : indexes;
+    }
+}
@@ -0,0 +1,134 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+import blockchain.utils.*;
+
+// Searches the 64 bit nonce space of a header on a pool of worker threads.
+// Workers claim disjoint nonce ranges from a shared cursor, so no nonce is tried
+// twice for the same header, and all of them stop as soon as one finds a hash or
+// the caller reports that the template went stale.
+
+public class MiningEngine {
+
+    public static final class Result {
+        private final long nonce;
+        private final String hash;
+
+        private Result(long nonce, String hash) {
+            this.nonce = nonce;
+            this.hash = hash;
+        }
+
+        public long getNonce() { return nonce; }
+
+        public String getHash() { return hash; }
+    }
+
+    private static final long RANGE_SIZE = 1L << 14;
+    // Workers also look for a stop or a stale template this often inside a range
+    private static final long CANCEL_CHECK_MASK = (1L << 10) - 1;
+    private static MiningEngine shared = null;
+
+    private final int parallelism;
+    private final ExecutorService workers;
+    private final LongAdder hashesDone = new LongAdder();
+
+    public MiningEngine(int parallelism) {
+        this.parallelism = parallelism;
+        workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "mining-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // One engine sized to the machine, shared by every miner in the process
+    public static synchronized MiningEngine shared() {
+        if (shared == null) {
+            shared = new MiningEngine(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    // Returns the first nonce whose hash meets the target in the header, or null if cancelled
+    public Result mine(BlockHeader header, BooleanSupplier cancelled) throws InterruptedException {
+        return mine(header, cancelled, hashes -> { });
+    }
+
+    // Same as above, also reporting the attempts of this search to hashSink one range at a time
+    public Result mine(BlockHeader header, BooleanSupplier cancelled, LongConsumer hashSink)
+            throws InterruptedException {
+        int[] highestHash = Target.highestWords(header.getBits());
+        AtomicLong cursor = new AtomicLong();
+        AtomicReference<Result> found = new AtomicReference<>();
+        AtomicBoolean stop = new AtomicBoolean();
+
+        List<Callable<Void>> tasks = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            tasks.add(() -> {
+                searchRanges(header.newHasher(), highestHash, cursor, found, stop, cancelled, hashSink);
+                return null;
+            });
+        }
+
+        try {
+            workers.invokeAll(tasks);
+        } finally {
+            stop.set(true);
+        }
+        return found.get();
+    }
+
+    private void searchRanges(BlockHeader.Hasher hasher, int[] highestHash, AtomicLong cursor,
+            AtomicReference<Result> found, AtomicBoolean stop, BooleanSupplier cancelled, LongConsumer hashSink) {
+        while (!stop.get()) {
+            if (cancelled.getAsBoolean()) {
+                stop.set(true);
+                return;
+            }
+
+            long start = cursor.getAndAdd(RANGE_SIZE);
+            long end = start + RANGE_SIZE;
+            for (long nonce = start; nonce != end; nonce++) {
+                if ((nonce & CANCEL_CHECK_MASK) == 0 && nonce != start
+                        && (stop.get() || cancelled.getAsBoolean())) {
+                    hashesDone.add(nonce - start);
+                    hashSink.accept(nonce - start);
+                    stop.set(true);
+                    return;
+                }
+                int[] digest = hasher.hash(nonce);
+                if (Target.isMetBy(digest, highestHash)) {
+                    hashesDone.add(nonce - start + 1);
+                    hashSink.accept(nonce - start + 1);
+                    if (found.compareAndSet(null, new Result(nonce, Sha256.toHex(digest)))) {
+                        stop.set(true);
+                    }
+                    return;
+                }
+            }
+            hashesDone.add(RANGE_SIZE);
+            hashSink.accept(RANGE_SIZE);
+        }
+    }
+
+    public int getParallelism() { return parallelism; }
+
+    // Total attempts made by this engine, for hashrate reporting
+    public long getHashesDone() { return hashesDone.sum(); }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,22 @@
+package blockchain;
+
+// Why a submitted transaction did not make it into the mempool
+
+enum Rejection {
+    SELF_TRANSFER,
+    KEY_MISMATCH,
+    // Signed with a key of another scheme than the chain's
+    WRONG_SCHEME,
+    BAD_SIGNATURE,
+    // Negative, or beyond what the bitmap of pruned ids can hold
+    BAD_ID,
+    STALE_ID,
+    DUPLICATE,
+    INSUFFICIENT_BALANCE,
+    MEMPOOL_FULL;
+
+    // Metric name the rejection is counted under
+    String metricName() {
+        return "transactions.rejected." + name().toLowerCase();
+    }
+}
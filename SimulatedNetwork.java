@@ -0,0 +1,91 @@
+package blockchain;
+
+import blockchain.utils.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Links between the nodes of an in-process cluster. A message is delivered after the time
+// it takes to send it at the link's bandwidth plus the link's latency, and it waits for the
+// messages sent before it on the same link, so a large block holds up whatever is queued
+// behind it. Messages are handed over as objects; the sender gives the size they would
+// have on the wire. Bytes and messages are counted per kind as network.bytes.<kind> and
+// network.messages.<kind>.
+
+class SimulatedNetwork {
+
+    interface Receiver {
+        void receive(int from, Object message);
+    }
+
+    private final long latencyNs;
+    private final long bytesPerSecond;
+    private final MetricsRegistry metrics;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Integer, Receiver> receivers = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> peers = new ConcurrentHashMap<>();
+    // When each directed link is done sending what it was given so far
+    private final Map<Long, Long> busyUntilNs = new ConcurrentHashMap<>();
+
+    SimulatedNetwork(long latencyMs, long bytesPerSecond, MetricsRegistry metrics) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bandwidth must be positive: " + bytesPerSecond);
+        }
+        this.latencyNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, latencyMs));
+        this.bytesPerSecond = bytesPerSecond;
+        this.metrics = metrics;
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "simulated-network");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void register(int node, Receiver receiver) {
+        receivers.put(node, receiver);
+        peers.computeIfAbsent(node, key -> new CopyOnWriteArraySet<>());
+    }
+
+    // Links are symmetric
+    void connect(int a, int b) {
+        if (a == b) { return; }
+        peers.computeIfAbsent(a, key -> new CopyOnWriteArraySet<>()).add(b);
+        peers.computeIfAbsent(b, key -> new CopyOnWriteArraySet<>()).add(a);
+    }
+
+    List<Integer> peersOf(int node) {
+        return new ArrayList<>(peers.getOrDefault(node, Set.of()));
+    }
+
+    void send(int from, int to, Object message, int size, String kind) {
+        Receiver receiver = receivers.get(to);
+        if (receiver == null || !peers.getOrDefault(from, Set.of()).contains(to)) { return; }
+
+        metrics.counter("network.bytes." + kind).add(size);
+        metrics.counter("network.messages." + kind).increment();
+        long transmitNs = size * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        long nowNs = System.nanoTime();
+        long sentNs = busyUntilNs.merge(link(from, to), nowNs + transmitNs,
+                (busy, idle) -> Math.max(busy, nowNs) + transmitNs);
+        scheduler.schedule(() -> receiver.receive(from, message), sentNs + latencyNs - nowNs, TimeUnit.NANOSECONDS);
+    }
+
+    long getBytes(String kind) {
+        return metrics.counter("network.bytes." + kind).sum();
+    }
+
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static long link(int from, int to) {
+        return (long) from << 32 | to;
+    }
+}
@@ -0,0 +1,124 @@
+package blockchain;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.Arrays;
+
+// Proof of work target in compact form ("bits"), as carried in block headers:
+//
+//   bits = exponent (8) | mantissa (24),  target = mantissa * 256^(exponent - 3)
+//
+// A hash meets the target when, read as a 256 bit number, it is below it. Every step
+// of the target is a fraction of a percent, so difficulty is no longer limited to
+// powers of 16 the way counting leading zero hex digits was. The largest target,
+// 2^256, is met by any hash. A mantissa with its top bit set is negative and no hash
+// meets it.
+
+public final class Target {
+    public static final BigInteger MAX_TARGET = BigInteger.ONE.shiftLeft(256);
+    public static final int MAX_BITS = 0x21010000;
+
+    private static final int MANTISSA_SIGN = 0x00800000;
+    private static final int HEX_DIGITS = 64;
+
+    private Target() { }
+
+    static BigInteger toTarget(int bits) {
+        int exponent = bits >>> 24;
+        int mantissa = bits & 0x00ffffff;
+        if ((mantissa & MANTISSA_SIGN) != 0) { return BigInteger.ZERO; }
+
+        BigInteger target = exponent <= 3
+                ? BigInteger.valueOf(mantissa >>> 8 * (3 - exponent))
+                : BigInteger.valueOf(mantissa).shiftLeft(8 * (exponent - 3));
+        return target.min(MAX_TARGET);
+    }
+
+    // Rounds down to the three most significant bytes, so the result never gets easier
+    static int toBits(BigInteger target) {
+        target = target.min(MAX_TARGET).max(BigInteger.ONE);
+        int size = (target.bitLength() + 7) / 8;
+        int mantissa = size <= 3
+                ? target.intValue() << 8 * (3 - size)
+                : target.shiftRight(8 * (size - 3)).intValue();
+        if ((mantissa & MANTISSA_SIGN) != 0) {
+            mantissa >>>= 8;
+            size++;
+        }
+        return size << 24 | mantissa;
+    }
+
+    // Target met by the hashes that start with the given number of zero hex digits
+    public static int ofLeadingZeros(int zeros) {
+        return toBits(BigInteger.ONE.shiftLeft(4 * (HEX_DIGITS - Math.max(0, Math.min(HEX_DIGITS, zeros)))));
+    }
+
+    // How many times harder the target is to meet than the largest one
+    public static double difficulty(int bits) {
+        BigInteger target = toTarget(bits);
+        if (target.signum() == 0) { return Double.POSITIVE_INFINITY; }
+        return new BigDecimal(MAX_TARGET).divide(new BigDecimal(target), MathContext.DECIMAL64).doubleValue();
+    }
+
+    // Target for the block after a run of consecutive blocks, given their bits and header
+    // timestamps oldest first: the mean target of all but the newest, scaled by the time
+    // from the first header to the last against intervalMs per block, and moved at most
+    // limit times either way. With fewer than two blocks there is no time to go by and the
+    // newest block's target carries on.
+    static int retarget(int[] bits, long[] timestamps, long intervalMs, int limit) {
+        int blocks = bits.length - 1;
+        if (blocks < 1) { return bits.length == 0 ? MAX_BITS : bits[0]; }
+
+        BigInteger targetSum = BigInteger.ZERO;
+        for (int i = 0; i < blocks; i++) {
+            targetSum = targetSum.add(toTarget(bits[i]));
+        }
+        long expectedMs = blocks * intervalMs;
+        long actualMs = timestamps[blocks] - timestamps[0];
+        actualMs = Math.max(expectedMs / limit, Math.min(expectedMs * limit, actualMs));
+        return toBits(targetSum.multiply(BigInteger.valueOf(actualMs))
+                .divide(BigInteger.valueOf(expectedMs * blocks)));
+    }
+
+    // Highest hash that meets the target, as big endian words in the layout of a
+    // Sha256 digest, or null if no hash does
+    static int[] highestWords(int bits) {
+        BigInteger target = toTarget(bits);
+        if (target.signum() == 0) { return null; }
+
+        byte[] bytes = target.subtract(BigInteger.ONE).toByteArray();
+        byte[] padded = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, padded, 32 - length, length);
+        int[] words = new int[8];
+        for (int i = 0; i < 8; i++) {
+            words[i] = (padded[4 * i] & 0xff) << 24 | (padded[4 * i + 1] & 0xff) << 16
+                    | (padded[4 * i + 2] & 0xff) << 8 | padded[4 * i + 3] & 0xff;
+        }
+        return words;
+    }
+
+    // The mining engine's check: the digest compared word by word, with no allocation
+    static boolean isMetBy(int[] digest, int[] highestWords) {
+        if (highestWords == null) { return false; }
+        for (int i = 0; i < 8; i++) {
+            if (digest[i] != highestWords[i]) {
+                return Integer.compareUnsigned(digest[i], highestWords[i]) < 0;
+            }
+        }
+        return true;
+    }
+
+    // Same check for a hash in hex, as stored in blocks
+    public static boolean isMetBy(String hash, int bits) {
+        if (hash == null || hash.length() != HEX_DIGITS) { return false; }
+        BigInteger target = toTarget(bits);
+        return new BigInteger(hash, 16).compareTo(target) < 0;
+    }
+
+    // Same check for a raw digest
+    static boolean isMetBy(byte[] hash, int bits) {
+        return new BigInteger(1, Arrays.copyOf(hash, 32)).compareTo(toTarget(bits)) < 0;
+    }
+}
@@ -1,18 +1,26 @@
 package blockchain;
 
 import blockchain.user.User;
+import blockchain.utils.SignatureUtils;
+import blockchain.utils.StringUtils;
 
 // Interface extends Key
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 
 public class Transaction {
+    // id | from id | to id | amount | creation time | SHA-256 of the sender's encoded key
+    public static final int SIGNING_BYTES_LENGTH = 8 + 8 + 8 + 4 + 8 + SignatureUtils.KEY_FINGERPRINT_LENGTH;
+
     private long transactionId;
     private User from;
     private User to;
     private int amount;
     private long creationTime;
-    private String signature;
+    private byte[] signature;
     private PublicKey publicKey;
+    private byte[] signingBytes;
+    private byte[] hash;
 
     // Assignes Transaction details
     public Transaction(long transactionId, User from, User to, int amount, PublicKey publicKey) {
@@ -24,9 +32,18 @@ public class Transaction {
         this.creationTime = System.currentTimeMillis();
     }
 
+    // Rebuilding a transaction read back from storage
+    static Transaction restore(long transactionId, User from, User to, int amount, PublicKey publicKey,
+            long creationTime, byte[] signature) {
+        Transaction transaction = new Transaction(transactionId, from, to, amount, publicKey);
+        transaction.creationTime = creationTime;
+        transaction.signature = signature;
+        return transaction;
+    }
+
     // Return Transaction details to the caller
 
-    public void setSignature(String signature) {
+    public void setSignature(byte[] signature) {
         this.signature = signature;
     }
 
@@ -40,10 +57,38 @@ public class Transaction {
 
     public long getCreationTime() { return creationTime; }
 
-    public String getSignature() { return signature; }
+    public byte[] getSignature() { return signature; }
+
+    // Canonical fixed layout encoding that gets signed, verified and hashed, built once.
+    // Every transaction carries its sender's key, there is no encoding without one.
+    // Callers must not modify the returned array.
+    public byte[] getSigningBytes() {
+        if (signingBytes == null) {
+            if (publicKey == null) {
+                throw new IllegalStateException("Transaction " + transactionId + " has no public key");
+            }
+            signingBytes = ByteBuffer.allocate(SIGNING_BYTES_LENGTH)
+                    .putLong(transactionId)
+                    .putLong(from.getId())
+                    .putLong(to.getId())
+                    .putInt(amount)
+                    .putLong(creationTime)
+                    .put(SignatureUtils.keyFingerprint(publicKey))
+                    .array();
+        }
+        return signingBytes;
+    }
 
     public PublicKey getPublicKey() { return publicKey; }
 
+    // Merkle leaf of this transaction, computed once
+    public byte[] getHash() {
+        if (hash == null) {
+            hash = StringUtils.sha256(getSigningBytes());
+        }
+        return hash;
+    }
+
     @Override
     public String toString() {
         return "Transaction{" +
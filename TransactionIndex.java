@@ -0,0 +1,160 @@
+package blockchain;
+
+import blockchain.utils.BloomFilter;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every transaction id the node knows about: the committed ones with the block
+// height and position they sit at, and the pending ones that were admitted but
+// are not in a block yet.
+//
+// Committed ids are fronted by a Bloom filter, so looking up an id that was
+// never committed (every fresh submission) costs a few bit probes and never
+// touches the map. Only the thread appending blocks commits, and it also rebuilds
+// the filter when it outgrows its capacity; readers may run concurrently.
+//
+// Transactions of blocks pruned after a snapshot lose their location but stay known
+// as committed in a bitmap, so they cannot be admitted or mined again. Ids are handed
+// out by a counter, so a bit per id is enough.
+
+class TransactionIndex {
+    private static final long INITIAL_FILTER_CAPACITY = 1 << 16;
+    private static final int POSITION_BITS = 24;
+
+    private final Map<Long, Long> locations = new ConcurrentHashMap<>();
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private volatile BloomFilter committedIds = new BloomFilter(INITIAL_FILTER_CAPACITY);
+    private final BitSet forgotten = new BitSet();
+    private volatile long largestForgottenId = -1;
+
+    // Reserves a submitted id; false if the id is already pending or committed
+    boolean claim(long id) {
+        if (isCommitted(id) || isForgotten(id)) { return false; }
+        if (!pending.add(id)) { return false; }
+        // The id may have been committed between the two checks
+        if (isCommitted(id)) {
+            pending.remove(id);
+            return false;
+        }
+        return true;
+    }
+
+    // Gives back an id whose transaction was rejected or evicted before reaching a block
+    void release(long id) {
+        pending.remove(id);
+    }
+
+    // Records the transactions of the block at the given height as committed
+    void commit(Block block, long height) {
+        int position = 0;
+        for (Transaction transaction : block.getTransactions()) {
+            if (position >= 1 << POSITION_BITS) {
+                throw new IllegalStateException("Block " + block.getId() + " has too many transactions to index");
+            }
+            long id = transaction.getId();
+            locations.put(id, height << POSITION_BITS | position);
+            position++;
+
+            if (locations.size() > committedIds.getCapacity()) {
+                rebuildFilter(committedIds.getCapacity() * 2);
+            }
+            committedIds.add(id);
+            pending.remove(id);
+        }
+    }
+
+    // Drops the locations of the block's transactions once their bodies are pruned; the
+    // ids stay known as committed
+    void forget(Block block) {
+        synchronized (forgotten) {
+            for (Transaction transaction : block.getTransactions()) {
+                long id = transaction.getId();
+                forgotten.set(bitOf(id));
+                largestForgottenId = Math.max(largestForgottenId, id);
+                locations.remove(id);
+            }
+        }
+    }
+
+    // Marks ids as committed in blocks held as headers only, from a snapshot's committed ids
+    void restoreForgotten(BitSet ids) {
+        synchronized (forgotten) {
+            forgotten.or(ids);
+            largestForgottenId = Math.max(largestForgottenId, forgotten.length() - 1);
+        }
+    }
+
+    // Copy of the ids of pruned blocks, for a snapshot
+    BitSet forgottenIds() {
+        synchronized (forgotten) {
+            return (BitSet) forgotten.clone();
+        }
+    }
+
+    // Whether the id fits the bitmap of pruned ids; blocks with other ids are refused
+    static boolean isTrackable(long id) {
+        return id >= 0 && id <= Integer.MAX_VALUE;
+    }
+
+    // Whether the id is in a block on the chain, including blocks pruned to their headers
+    boolean wasCommitted(long id) {
+        return isCommitted(id) || isForgotten(id);
+    }
+
+    // Undoes commit for a block taken off the chain by a reorg; its transactions go back to
+    // pending. Their filter bits stay, the filter only ever answers maybe.
+    void uncommit(Block block) {
+        for (Transaction transaction : block.getTransactions()) {
+            locations.remove(transaction.getId());
+            pending.add(transaction.getId());
+        }
+    }
+
+    // Height of the block holding the committed transaction, or -1 if it is not committed
+    long heightOf(long id) {
+        Long location = committedLocation(id);
+        return location == null ? -1 : location >>> POSITION_BITS;
+    }
+
+    // Position of the committed transaction within its block, or -1 if it is not committed
+    int positionOf(long id) {
+        Long location = committedLocation(id);
+        return location == null ? -1 : (int) (location & ((1 << POSITION_BITS) - 1));
+    }
+
+    long getCommittedCount() {
+        return locations.size();
+    }
+
+    private boolean isCommitted(long id) {
+        return committedLocation(id) != null;
+    }
+
+    // Ids above every pruned one, every fresh submission among them, skip the lock
+    private boolean isForgotten(long id) {
+        if (id < 0 || id > largestForgottenId) { return false; }
+        synchronized (forgotten) {
+            return forgotten.get(bitOf(id));
+        }
+    }
+
+    static int bitOf(long id) {
+        if (!isTrackable(id)) {
+            throw new IllegalStateException("Transaction id out of the range a pruned chain can track: " + id);
+        }
+        return (int) id;
+    }
+
+    private Long committedLocation(long id) {
+        return committedIds.mightContain(id) ? locations.get(id) : null;
+    }
+
+    private void rebuildFilter(long capacity) {
+        BloomFilter filter = new BloomFilter(capacity);
+        locations.keySet().forEach(filter::add);
+        committedIds = filter;
+    }
+}
@@ -0,0 +1,120 @@
+package blockchain;
+
+import blockchain.user.Miner;
+import blockchain.user.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import blockchain.utils.SignatureUtils;
+
+// Deterministic chains for the benchmarks. Lives in the blockchain package so it
+// can hand a prebuilt chain to a driver without mining every block.
+
+public final class ChainFixtures {
+    public static final int N_ACCOUNTS = 20;
+    public static final int TRANSACTIONS_PER_BLOCK = 4;
+    private static final long KEY_SEED = 42;
+
+    // Generated on first use, RSA key generation is slow
+    private static KeyPair[] accountKeys;
+
+    private ChainFixtures() { }
+
+    // History accounts 1..N_ACCOUNTS, the same objects are reused as senders, receivers and miners
+    public static List<User> accounts() {
+        List<User> accounts = new ArrayList<>(N_ACCOUNTS);
+        for (int id = 1; id <= N_ACCOUNTS; id++) {
+            accounts.add(User.restored(id));
+        }
+        return accounts;
+    }
+
+    // RSA key pairs from a seeded SHA1PRNG, identical between runs
+    public static KeyPair[] keyPairs(int count, long seed) {
+        try {
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            random.setSeed(seed);
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(1024, random);
+            KeyPair[] keyPairs = new KeyPair[count];
+            for (int i = 0; i < count; i++) {
+                keyPairs[i] = generator.generateKeyPair();
+            }
+            return keyPairs;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // One fixed key pair per account, shared by every fixture chain
+    public static synchronized KeyPair[] accountKeys() {
+        if (accountKeys == null) {
+            accountKeys = keyPairs(N_ACCOUNTS, KEY_SEED);
+        }
+        return accountKeys;
+    }
+
+    // A linked, consistent chain of the given length. Transactions carry their sender's real
+    // key but no signature, which is enough for balance, validation and storage runs.
+    public static List<Block> blocks(int length, long seed) {
+        KeyPair[] keyPairs = accountKeys();
+        Random random = new Random(seed);
+        List<User> accounts = accounts();
+        List<Block> blocks = new ArrayList<>(length);
+        String prevBlockHash = "0";
+        long transactionId = 1;
+
+        for (int id = 1; id <= length; id++) {
+            List<Transaction> transactions = new ArrayList<>(TRANSACTIONS_PER_BLOCK);
+            for (int i = 0; i < TRANSACTIONS_PER_BLOCK; i++) {
+                int from = random.nextInt(N_ACCOUNTS);
+                int to = (from + 1 + random.nextInt(N_ACCOUNTS - 1)) % N_ACCOUNTS;
+                transactions.add(new Transaction(transactionId++, accounts.get(from), accounts.get(to),
+                        random.nextInt(10), keyPairs[from].getPublic()));
+            }
+
+            Block block = Block.with(id, transactions, prevBlockHash, 100);
+            block.setMiner(Miner.restored(1 + random.nextInt(N_ACCOUNTS)));
+            block.setMagicNum(random.nextLong());
+            block.setHash(block.getHeader().hash(block.getMagicNum()));
+            block.setTimeTookForMiningMs(Blockchain.getFixedMiningTimeMs());
+            blocks.add(block);
+            prevBlockHash = block.getHash();
+        }
+        return blocks;
+    }
+
+    // Blockchain holding the given history, attached to the driver as if it had been replayed
+    public static Blockchain chain(BlockchainDriver driver, List<Block> blocks) {
+        Blockchain blockchain = Blockchain.generateBlockchain(driver, blocks, SignatureUtils.RSA);
+        driver.blockchain = blockchain;
+        return blockchain;
+    }
+
+    // Lets benchmarks submit unmined blocks; difficulty zero accepts any hash
+    public static void pinDifficulty(Blockchain blockchain, int noOfStartZeros) {
+        blockchain.pinDifficulty(noOfStartZeros);
+    }
+
+    public static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
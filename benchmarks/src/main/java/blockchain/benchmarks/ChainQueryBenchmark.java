@@ -0,0 +1,87 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import blockchain.Blockchain;
+import blockchain.BlockchainDriver;
+import blockchain.ChainFixtures;
+import blockchain.HistoryPage;
+import blockchain.user.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Blockchain.getBalance, getHistory and isValid against in-memory chains of
+// increasing length. isValid only checks blocks added since its last call, so
+// coldIsValid validates a freshly replayed chain to measure the full check.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ChainQueryBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int chainLength;
+
+    private Path dataDirectory;
+    private BlockchainDriver driver;
+    private List<Block> blocks;
+    private Blockchain blockchain;
+    private List<User> accounts;
+    private int nextAccount;
+
+    @Setup
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("chain-query-bench");
+        driver = BlockchainDriver.newDriver(dataDirectory.toString());
+        blocks = ChainFixtures.blocks(chainLength, 42);
+        blockchain = ChainFixtures.chain(driver, blocks);
+        accounts = ChainFixtures.accounts();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ChainFixtures.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    public int getBalance() {
+        User user = accounts.get(nextAccount++ % accounts.size());
+        return blockchain.getBalance(user, 100);
+    }
+
+    // First page of a wallet's history, which should not depend on the chain length
+    @Benchmark
+    public HistoryPage getHistory() {
+        User user = accounts.get(nextAccount++ % accounts.size());
+        return blockchain.getHistory(user, 0, 20);
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return blockchain.isValid();
+    }
+
+    // Includes replaying the blocks into a new chain before validating it
+    @Benchmark
+    public boolean coldIsValid() {
+        return ChainFixtures.chain(driver, blocks).isValid();
+    }
+}
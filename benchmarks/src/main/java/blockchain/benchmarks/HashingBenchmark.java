@@ -0,0 +1,61 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import blockchain.BlockHeader;
+import blockchain.ChainFixtures;
+import blockchain.utils.StringUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// StringUtils.applySha256 on strings of several sizes, next to one header
+// attempt through the SHA-256 midstate that mining uses.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+
+    @Param({ "64", "1024", "16384" })
+    public int inputLength;
+
+    private String input;
+    private BlockHeader.Hasher hasher;
+    private long nonce;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        char[] chars = new char[inputLength];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        input = new String(chars);
+        Block block = ChainFixtures.blocks(1, 42).get(0);
+        hasher = block.getHeader().newHasher();
+    }
+
+    @Benchmark
+    public String applySha256() {
+        return StringUtils.applySha256(input);
+    }
+
+    @Benchmark
+    public int[] headerMidstateHash() {
+        return hasher.hash(nonce++);
+    }
+}
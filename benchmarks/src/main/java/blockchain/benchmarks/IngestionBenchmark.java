@@ -0,0 +1,87 @@
+package blockchain.benchmarks;
+
+import blockchain.Blockchain;
+import blockchain.BlockchainDriver;
+import blockchain.ChainFixtures;
+import blockchain.Transaction;
+import blockchain.user.User;
+import blockchain.utils.SignatureUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Blockchain.addTransactions with pre-signed batches, for several verifier pool
+// sizes. Scores are accepted transactions per second. Amounts are zero so no
+// sender runs dry while nothing is being mined.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestionBenchmark {
+    private static final int BATCH_SIZE = 256;
+    private static final int N_USERS = 16;
+
+    @Param({ "1", "2", "4", "8" })
+    public int verifierThreads;
+
+    @Param({ "RSA", "Ed25519" })
+    public String scheme;
+
+    private Path dataDirectory;
+    private Blockchain blockchain;
+    private List<User> users;
+    private List<Transaction> batch;
+
+    // A fresh chain per iteration keeps the mempool far from its capacity
+    @Setup(Level.Iteration)
+    public void setUpChain() throws IOException {
+        dataDirectory = Files.createTempDirectory("ingestion-bench");
+        blockchain = BlockchainDriver.newDriver(dataDirectory.toString(), SignatureUtils.forName(scheme))
+                .getBlockchain();
+        blockchain.setVerifierThreads(verifierThreads);
+        users = new ArrayList<>(N_USERS);
+        for (int id = 1; id <= N_USERS; id++) {
+            users.add(User.with(id, blockchain));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownChain() throws IOException {
+        ChainFixtures.deleteRecursively(dataDirectory);
+    }
+
+    @Setup(Level.Invocation)
+    public void signBatch() {
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(users.get(i % N_USERS).newTransaction(users.get((i + 1) % N_USERS), 0));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int addTransactions() {
+        return blockchain.addTransactions(batch);
+    }
+}
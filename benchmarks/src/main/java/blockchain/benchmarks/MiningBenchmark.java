@@ -0,0 +1,74 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import blockchain.BlockHeader;
+import blockchain.MiningEngine;
+import blockchain.Target;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// What Miner.blindMining does per template: hand a header to the MiningEngine
+// until it finds a nonce with the required leading zeros. Scores are blocks
+// per second; the "hashes" counter is the hashrate behind them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MiningBenchmark {
+
+    @Param({ "1", "2", "4", "8" })
+    public int engineThreads;
+
+    @Param({ "4" })
+    public int requiredZeros;
+
+    private MiningEngine engine;
+    private long blockId;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Hashrate {
+        public long hashes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        engine = new MiningEngine(engineThreads);
+        blockId = 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public MiningEngine.Result blindMining(Hashrate hashrate) throws InterruptedException {
+        // A new block id per call, so every search starts on a fresh header
+        Block block = Block.with(blockId++, Collections.emptyList(), "0", 100);
+        block.setBits(Target.ofLeadingZeros(requiredZeros));
+        BlockHeader header = block.getHeader();
+        long before = engine.getHashesDone();
+        MiningEngine.Result result = engine.mine(header, () -> false);
+        hashrate.hashes += engine.getHashesDone() - before;
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import blockchain.Blockchain;
+import blockchain.BlockchainDriver;
+import blockchain.ChainFixtures;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// BlockchainDriver.saveBlockchain of a whole chain into an empty data directory
+// followed by getBlockchain on a fresh driver, which replays and validates it. The save
+// forces the log unless durability is NONE.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    @Param({ "10", "1000" })
+    public int chainLength;
+
+    @Param({ "NONE", "PER_BATCH" })
+    public String durability;
+
+    private List<Block> blocks;
+    private Path dataDirectory;
+
+    @Setup(Level.Trial)
+    public void setUpChain() {
+        blocks = ChainFixtures.blocks(chainLength, 42);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpDirectory() throws IOException {
+        dataDirectory = Files.createTempDirectory("persistence-bench");
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownDirectory() throws IOException {
+        ChainFixtures.deleteRecursively(dataDirectory);
+    }
+
+    @Benchmark
+    public Blockchain saveAndLoad() {
+        BlockchainDriver writer = BlockchainDriver.newDriver(dataDirectory.toString());
+        writer.setDurability(BlockchainDriver.Durability.valueOf(durability));
+        ChainFixtures.chain(writer, blocks);
+        if (!writer.saveBlockchain()) {
+            throw new IllegalStateException("saveBlockchain failed");
+        }
+        return BlockchainDriver.newDriver(dataDirectory.toString()).getBlockchain();
+    }
+}
@@ -0,0 +1,62 @@
+package blockchain.benchmarks;
+
+import blockchain.utils.SignatureScheme;
+import blockchain.utils.SignatureUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Key generation, signing and verification for each signature scheme.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+
+    @Param({ "RSA", "Ed25519" })
+    public String scheme;
+
+    private SignatureScheme signatureScheme;
+    private KeyPair keyPair;
+    private byte[] message;
+    private byte[] signature;
+
+    @Setup
+    public void setUp() {
+        signatureScheme = SignatureUtils.forName(scheme);
+        keyPair = signatureScheme.generateKeyPair();
+        message = new byte[128];
+        new Random(42).nextBytes(message);
+        signature = SignatureUtils.generateSignature(message, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() {
+        return signatureScheme.generateKeyPair();
+    }
+
+    @Benchmark
+    public byte[] generateSignature() {
+        return SignatureUtils.generateSignature(message, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        return SignatureUtils.verifySignature(message, signature, keyPair.getPublic());
+    }
+}
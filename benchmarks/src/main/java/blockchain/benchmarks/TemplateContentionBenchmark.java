@@ -0,0 +1,109 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import blockchain.Blockchain;
+import blockchain.BlockchainDriver;
+import blockchain.ChainFixtures;
+import blockchain.Transaction;
+import blockchain.user.Miner;
+import blockchain.user.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// addTransaction and submitBlock racing on one chain: 28 ingest threads feed
+// pre-signed transactions while 4 miners keep submitting the current template.
+// The difficulty is pinned at zero so a submission needs no mining, which leaves
+// template publication, ingestion and persistence as the measured work. Once the
+// pre-signed transactions wrap around, resubmissions are rejected as stale.
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TemplateContentionBenchmark {
+    private static final int N_USERS = 32;
+    private static final int N_TRANSACTIONS = 1 << 12;
+
+    private Path dataDirectory;
+    private Blockchain blockchain;
+    private List<Transaction> transactions;
+    private final AtomicInteger nextTransaction = new AtomicInteger();
+    private final AtomicInteger nextMiner = new AtomicInteger();
+    private List<Miner> miners;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("template-contention-bench");
+        blockchain = BlockchainDriver.newDriver(dataDirectory.toString()).getBlockchain();
+        ChainFixtures.pinDifficulty(blockchain, 0);
+
+        List<User> users = IntStream.rangeClosed(1, N_USERS)
+                .mapToObj(id -> User.with(id, blockchain))
+                .collect(Collectors.toList());
+        miners = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            miners.add(Miner.with(N_USERS + 1 + i, blockchain));
+        }
+        // Amounts are zero so no sender runs dry; ids are taken in order so few turn stale
+        transactions = IntStream.range(0, N_TRANSACTIONS)
+                .mapToObj(i -> users.get(i % N_USERS).newTransaction(users.get((i + 1) % N_USERS), 0))
+                .collect(Collectors.toList());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ChainFixtures.deleteRecursively(dataDirectory);
+    }
+
+    @State(Scope.Thread)
+    public static class MinerSlot {
+        Miner miner;
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(28)
+    public boolean addTransaction() {
+        int i = nextTransaction.getAndIncrement();
+        return blockchain.addTransaction(transactions.get(i % N_TRANSACTIONS));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public boolean submitBlock(MinerSlot slot) {
+        if (slot.miner == null) {
+            slot.miner = miners.get(nextMiner.getAndIncrement() % miners.size());
+        }
+        Block block = blockchain.getUnprocessedBlock();
+        if (block == null) { return false; }
+        block.setMiner(slot.miner);
+        block.setMagicNum(0);
+        block.setHash(block.getHeader().hash(0));
+        return blockchain.submitBlock(block, slot.miner);
+    }
+}
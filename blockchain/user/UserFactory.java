@@ -1,49 +1,58 @@
 package blockchain.user;
 
 import blockchain.Blockchain;
-import java.util.ArrayList;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Safe to call from many threads: ids come from an atomic counter and users are
+// published through a concurrent map, so wallets can be created in parallel
+// while running users already look each other up.
 public class UserFactory {
     private static Blockchain blockchain;
-    private static long runningUserId;
-    private static ArrayList<User> users;
+    private static final AtomicLong runningUserId = new AtomicLong(1);
+    private static final Map<Long, User> users = new ConcurrentHashMap<>();
     private static UserFactory thisObj = null;
 
     // Initialize objects and data members
     private UserFactory(Blockchain blockchain) {
         UserFactory.blockchain = blockchain;
-        runningUserId = 1;
-        users = new ArrayList<>();
     }
 
     // Create & return new object if null
-    public static UserFactory with(Blockchain blockchain) {
+    public static synchronized UserFactory with(Blockchain blockchain) {
         if (thisObj == null) {
             thisObj = new UserFactory(blockchain);
-            return thisObj;
         }
         return thisObj;
     }
 
-    //  Create add and return user object to ArrayList
+    //  Create add and return user object
     public User newUser() {
-        User user = User.with(runningUserId++, blockchain);
-        users.add(user);
+        User user = User.with(runningUserId.getAndIncrement(), blockchain);
+        users.put(user.getId(), user);
         return user;
     }
-    //  Create add and return miner object to ArrayList
+    //  Create add and return miner object
     public Miner newMiner() {
-        Miner miner = Miner.with(runningUserId++, blockchain);
-        users.add(miner);
+        Miner miner = Miner.with(runningUserId.getAndIncrement(), blockchain);
+        users.put(miner.getId(), miner);
+        return miner;
+    }
+    //  Miner working for another node of an in-process cluster, from the same id sequence
+    public Miner newMiner(Blockchain node) {
+        Miner miner = Miner.with(runningUserId.getAndIncrement(), node);
+        users.put(miner.getId(), miner);
         return miner;
     }
 
-    // Return User id
+    // User with the given id, or null if it is not created (yet)
     public static User getUser(long id) {
-        return users.get((int) id - 1);
+        return users.get(id);
     }
 
-    // Return size of arrayListdoTransaction
+    // Return number of users created so far
     public static long getNoOfUsers() {
         return users.size();
     }
@@ -2,27 +2,46 @@ package blockchain.user;
 
 import java.util.Random;
 import blockchain.*;
-import blockchain.utils.*;
+import blockchain.utils.MetricsRegistry;
 
 // BLIND MINING STRATERGY IS USED AS THERE ARE NO PHYSICAL MINERS.
 
 public class Miner extends User implements Runnable {
 
     private Block currentMiningBlock = null;
-    private static final int BLIND_REPETITIONS = 100;
-    private static final int SLEEP_WHEN_NO_WORK_MS = 1000;
-    private Random mineRandom;
+    private BlockHeader currentHeader = null;
+    private long currentTemplateVersion = -1;
+    // Upper bound on one park, the miner is normally woken by the template change itself
+    private static final long MAX_IDLE_WAIT_MS = 60_000;
+    private final MiningEngine engine;
     private final Random selectRandom;
+    private final MetricsRegistry.Meter hashMeter;
+    private final MetricsRegistry.Meter totalHashMeter;
 
     private Miner(long id, Blockchain blockchain) {
         super(id, blockchain);
+        engine = MiningEngine.shared();
         selectRandom = new Random();
+        hashMeter = blockchain.getMetrics().meter("mining.hashes.miner-" + id);
+        totalHashMeter = blockchain.getMetrics().meter("mining.hashes");
+    }
+
+    private Miner(long id) {
+        super(id);
+        engine = null;
+        selectRandom = null;
+        hashMeter = null;
+        totalHashMeter = null;
     }
 
     public static Miner with(long id, Blockchain blockchain) {
         return new Miner(id, blockchain);
     }
 
+    public static Miner restored(long id) {
+        return new Miner(id);
+    }
+
     @Override
     public void run() {
         while (true) {
@@ -46,40 +65,45 @@ public class Miner extends User implements Runnable {
         while (!successful) {
             updateCurrentMiningBlock();
             if (currentMiningBlock == null) {
-                Thread.sleep(SLEEP_WHEN_NO_WORK_MS);
+                blockchain.awaitTemplateChange(currentTemplateVersion, MAX_IDLE_WAIT_MS);
                 continue;
             }
-            successful = blindMining();
-            if (successful) {
-                blockchain.submitBlock(currentMiningBlock, this);
+            successful = blindMining() && blockchain.submitBlock(currentMiningBlock, this);
+            if (!successful) {
+                // Lost the race or the template moved on, pick up the latest one
+                currentTemplateVersion = -1;
             }
         }
     }
 
-    // Initializing magic numbers and computing hash
-    private boolean blindMining() {
-        String requiredPrefix = blockchain.getRequiredPrefixForHash();
-        for (int i = 0; i < BLIND_REPETITIONS; i++) {
-            currentMiningBlock.setMagicNum(mineRandom.nextInt());
-            String computedHash = StringUtils.applySha256(currentMiningBlock.toString());
-            if (computedHash.startsWith(requiredPrefix)) {
-                currentMiningBlock.setHash(computedHash);
-                return true;
-            }
+    // Hand the header to the mining engine until it finds a magic number or the template changes
+    private boolean blindMining() throws InterruptedException {
+        long version = currentTemplateVersion;
+        MiningEngine.Result result = engine.mine(currentHeader,
+                () -> blockchain.getTemplateVersion() != version, this::recordHashes);
+        if (result == null) {
+            return false;
         }
-        return false;
+        currentMiningBlock.setMagicNum(result.getNonce());
+        currentMiningBlock.setHash(result.getHash());
+        return true;
+    }
+
+    private void recordHashes(long hashes) {
+        hashMeter.mark(hashes);
+        totalHashMeter.mark(hashes);
     }
 
-    // Set current minning block
+    // Set current minning block, the template is only copied when its version moved
     private void updateCurrentMiningBlock() {
-        Block block = blockchain.getUnprocessedBlock();
-        if (currentMiningBlock == null || !currentMiningBlock.equals(block)) {
-            currentMiningBlock = block;
-            mineRandom = new Random();
+        long version = blockchain.getTemplateVersion();
+        if (version == currentTemplateVersion) { return; }
 
-            if (currentMiningBlock != null) {
-                currentMiningBlock.setMiner(this);
-            }
+        currentTemplateVersion = version;
+        currentMiningBlock = blockchain.getUnprocessedBlock();
+        if (currentMiningBlock != null) {
+            currentMiningBlock.setMiner(this);
+            currentHeader = currentMiningBlock.getHeader();
         }
     }
 }
\ No newline at end of file
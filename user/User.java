@@ -2,7 +2,6 @@ package blockchain.user;
 
 import blockchain.Blockchain;
 import blockchain.Transaction;
-import blockchain.utils.SignatureUtils;
 
 import java.security.KeyPair;
 import java.security.PublicKey;
@@ -21,17 +20,25 @@ public class User implements Runnable {
     protected User(long id, Blockchain blockchain) {
         this.blockchain = blockchain;
         this.id = id;
-        name = names[(int) id];
+        name = nameOf(id);
         transRandom = new Random();
-        while (keyPair == null) {
-            keyPair = SignatureUtils.generateKeyPair();
-        }
+        keyPair = blockchain.getSignatureScheme().generateKeyPair();
+    }
+
+    // Account known only from stored chain history; it holds no keys and cannot transact
+    protected User(long id) {
+        this.id = id;
+        name = nameOf(id);
     }
 
     public static User with(long id, Blockchain blockchain) {
         return new User(id, blockchain);
     }
 
+    public static User restored(long id) {
+        return new User(id);
+    }
+
 
     @Override
     public void run() {
@@ -53,25 +60,40 @@ public class User implements Runnable {
 
     // Performing Transaction and setting up signature for transaction
     protected boolean doTransaction() {
-        User to = UserFactory.getUser(transRandom.nextInt((int) UserFactory.getNoOfUsers() + 1));
+        // User ids start at 1
+        User to = UserFactory.getUser(1 + transRandom.nextInt((int) UserFactory.getNoOfUsers()));
+        if (to == null) { return false; }
         int amount = transRandom.nextInt(100 + 1);
+        return blockchain.addTransaction(newTransaction(to, amount));
+    }
+
+    // Signed transaction from this user, not yet submitted
+    public Transaction newTransaction(User to, int amount) {
         long transactionId = blockchain.getTransactionId();
 
         Transaction transaction = new Transaction(transactionId, this, to, amount, keyPair.getPublic());
-        String signature = SignatureUtils.generateSignature(transaction.toString(), keyPair.getPrivate());
-        transaction.setSignature(signature);
-
-        return blockchain.addTransaction(transaction);
+        transaction.setSignature(blockchain.getSignatureScheme().sign(transaction.getSigningBytes(), keyPair.getPrivate()));
+        return transaction;
     }
 
     public PublicKey getPublicKey() {
         return keyPair.getPublic();
     }
 
+    public long getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
 
+    // Names repeat once the list runs out, so later ones carry their id
+    private static String nameOf(long id) {
+        String name = names[(int) (id % names.length)];
+        return id < names.length ? name : name + "#" + id;
+    }
+
     // Random naming
     protected static String[] names = { "James", "Mary", "John", "Linda", "Robert", "Michael", "Sarah", "William",
             "Laya", "David", "Richard", "Lisa", "Joseph", "Thomas", "Jessica", "Charles", "Nancy", "Jyothi", "Karthik",
@@ -0,0 +1,64 @@
+package blockchain.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bloom filter over long keys with about 1% false positives at its capacity.
+// Bits are set atomically, so one thread can add while others query; a key
+// is visible to readers as soon as add returns.
+public class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int N_HASHES = 7;
+
+    private final AtomicLongArray bits;
+    private final long nBits;
+    private final long capacity;
+
+    public BloomFilter(long capacity) {
+        this.capacity = capacity;
+        int nWords = (int) Math.max(1, (capacity * BITS_PER_KEY + 63) / 64);
+        bits = new AtomicLongArray(nWords);
+        nBits = nWords * 64L;
+    }
+
+    public void add(long key) {
+        long hash = mix(key);
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xffffffffL;
+        for (int i = 0; i < N_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, nBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    // False means the key was never added
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        long h1 = hash >>> 32;
+        long h2 = hash & 0xffffffffL;
+        for (int i = 0; i < N_HASHES; i++) {
+            long bit = Math.floorMod(h1 + i * h2, nBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Number of keys the false positive rate is tuned for
+    public long getCapacity() {
+        return capacity;
+    }
+
+    // SplitMix64 finalizer, spreads sequential ids over the whole bit array
+    private static long mix(long key) {
+        long z = key + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
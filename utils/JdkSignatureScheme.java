@@ -0,0 +1,102 @@
+package blockchain.utils;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.X509EncodedKeySpec;
+
+// SignatureScheme backed by the JDK providers. Signature, KeyFactory and
+// KeyPairGenerator instances are created once per thread and reused, instead
+// of being looked up on every call.
+
+class JdkSignatureScheme implements SignatureScheme {
+    private final String name;
+    private final String keyAlgorithm;
+    private final ThreadLocal<Signature> signatures;
+    private final ThreadLocal<KeyFactory> keyFactories;
+    private final ThreadLocal<KeyPairGenerator> keyPairGenerators;
+
+    JdkSignatureScheme(String name, String keyAlgorithm, String signatureAlgorithm, String generatorAlgorithm,
+            int keySize) {
+        this.name = name;
+        this.keyAlgorithm = keyAlgorithm;
+        signatures = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(signatureAlgorithm);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(name + " signatures are not available in this JDK", e);
+            }
+        });
+        keyFactories = ThreadLocal.withInitial(() -> {
+            try {
+                return KeyFactory.getInstance(generatorAlgorithm);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(name + " keys are not available in this JDK", e);
+            }
+        });
+        keyPairGenerators = ThreadLocal.withInitial(() -> {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance(generatorAlgorithm);
+                if (keySize > 0) {
+                    generator.initialize(keySize);
+                }
+                return generator;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(name + " keys are not available in this JDK", e);
+            }
+        });
+    }
+
+    @Override
+    public String getName() { return name; }
+
+    @Override
+    public String getKeyAlgorithm() { return keyAlgorithm; }
+
+    @Override
+    public KeyPair generateKeyPair() {
+        return keyPairGenerators.get().generateKeyPair();
+    }
+
+    @Override
+    public byte[] sign(byte[] data, PrivateKey privateKey) {
+        Signature signature = signatures.get();
+        try {
+            signature.initSign(privateKey);
+            signature.update(data);
+            return signature.sign();
+        } catch (InvalidKeyException | SignatureException e) {
+            throw new IllegalArgumentException("Cannot sign with a " + privateKey.getAlgorithm() + " key", e);
+        }
+    }
+
+    @Override
+    public boolean verify(byte[] data, byte[] signature, PublicKey publicKey) {
+        if (signature == null) {
+            return false;
+        }
+        Signature verifier = signatures.get();
+        try {
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (InvalidKeyException | SignatureException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public PublicKey decodePublicKey(byte[] encoded) {
+        try {
+            return keyFactories.get().generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Not a " + name + " public key", e);
+        }
+    }
+}
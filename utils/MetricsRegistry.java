@@ -0,0 +1,294 @@
+package blockchain.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Named counters, gauges, meters, timers and histograms of one node. Every value is exposed
+// as a read-only attribute of a single dynamic MBean and can be dumped as text.
+// Meters keep a one minute moving rate that is refreshed every TICK_SECONDS on
+// a ticker thread shared by all registries in the process.
+
+public class MetricsRegistry implements DynamicMBean {
+    private static final int TICK_SECONDS = 5;
+    private static final double ONE_MINUTE_ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static final class Meter {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder uncounted = new LongAdder();
+        private volatile double rate = 0;
+        private volatile boolean initialized = false;
+
+        public void mark(long n) {
+            count.add(n);
+            uncounted.add(n);
+        }
+
+        public long getCount() { return count.sum(); }
+
+        // Events per second over roughly the last minute
+        public double getOneMinuteRate() { return rate; }
+
+        private void tick() {
+            double instantRate = uncounted.sumThenReset() / (double) TICK_SECONDS;
+            if (initialized) {
+                rate += ONE_MINUTE_ALPHA * (instantRate - rate);
+            } else {
+                rate = instantRate;
+                initialized = true;
+            }
+        }
+    }
+
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNs = new LongAdder();
+        private final LongAccumulator maxNs = new LongAccumulator(Math::max, 0);
+
+        public void record(long durationNs) {
+            count.increment();
+            totalNs.add(durationNs);
+            maxNs.accumulate(durationNs);
+        }
+
+        public long getCount() { return count.sum(); }
+
+        public double getMeanMs() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNs.sum() / (n * 1e6);
+        }
+
+        public double getMaxMs() { return maxNs.get() / 1e6; }
+    }
+
+    // Latency distribution in log-linear buckets: 16 buckets per power of two, so a
+    // percentile is reported at most 1/16 above the recorded value it stands for
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAccumulator maxNs = new LongAccumulator(Math::max, 0);
+
+        public void record(long durationNs) {
+            long value = Math.max(0, durationNs);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            maxNs.accumulate(value);
+        }
+
+        public long getCount() { return count.sum(); }
+
+        // Value at or below which the given fraction of the recordings fall, 0.99 for p99
+        public double getPercentileMs(double fraction) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), maxNs.get()) / 1e6;
+                }
+            }
+            return 0;
+        }
+
+        public double getMaxMs() { return maxNs.get() / 1e6; }
+
+        // Values below 2 * SUB_BUCKETS get a bucket each, above that the top bits pick the bucket
+        private static int bucketOf(long value) {
+            int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+            return (int) (shift * SUB_BUCKETS + (value >>> shift));
+        }
+
+        private static long highestValueOf(int bucket) {
+            int shift = Math.max(0, bucket / SUB_BUCKETS - 1);
+            long top = bucket - shift * SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Meter> meters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    // Ticks the meters of a registry until the registry is garbage collected
+    private static final class MeterTicker implements Runnable {
+        private final WeakReference<Map<String, Meter>> meters;
+        private volatile ScheduledFuture<?> schedule;
+
+        MeterTicker(Map<String, Meter> meters) {
+            this.meters = new WeakReference<>(meters);
+        }
+
+        @Override
+        public void run() {
+            Map<String, Meter> live = meters.get();
+            if (live == null) {
+                schedule.cancel(false);
+            } else {
+                live.values().forEach(Meter::tick);
+            }
+        }
+    }
+
+    public MetricsRegistry() {
+        MeterTicker ticker = new MeterTicker(meters);
+        ticker.schedule = TICKER.scheduleAtFixedRate(ticker, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public Meter meter(String name) {
+        return meters.computeIfAbsent(name, key -> new Meter());
+    }
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, key -> new Timer());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    // Flattened view of every metric, sorted by name
+    public SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        meters.forEach((name, meter) -> {
+            values.put(name + ".count", meter.getCount());
+            values.put(name + ".rate1m", meter.getOneMinuteRate());
+        });
+        timers.forEach((name, timer) -> {
+            values.put(name + ".count", timer.getCount());
+            values.put(name + ".meanMs", timer.getMeanMs());
+            values.put(name + ".maxMs", timer.getMaxMs());
+        });
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".p50Ms", histogram.getPercentileMs(0.5));
+            values.put(name + ".p99Ms", histogram.getPercentileMs(0.99));
+            values.put(name + ".p999Ms", histogram.getPercentileMs(0.999));
+            values.put(name + ".maxMs", histogram.getMaxMs());
+        });
+        return values;
+    }
+
+    public String dump() {
+        StringBuilder str = new StringBuilder();
+        snapshot().forEach((name, value) -> {
+            str.append(name).append(" = ");
+            str.append(value instanceof Double ? String.format("%.3f", (Double) value) : value);
+            str.append('\n');
+        });
+        return str.toString();
+    }
+
+    // Hands a text dump to the sink every periodMs until the JVM exits
+    public void startReporting(long periodMs, Consumer<String> sink) {
+        TICKER.scheduleAtFixedRate(() -> sink.accept(dump()), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Registers this registry with the platform MBean server as blockchain:type=Metrics,name=<name>
+    public void exposeOverJmx(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("blockchain:type=Metrics,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics as " + name, e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Object> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("dump".equals(actionName) && (params == null || params.length == 0)) {
+            return dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+        snapshot().forEach((name, value) -> attributes.add(new MBeanAttributeInfo(
+                name, value.getClass().getName(), name, true, false, false)));
+        MBeanOperationInfo dump = new MBeanOperationInfo("dump", "Every metric as text, one per line",
+                new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO);
+        return new MBeanInfo(getClass().getName(), "Blockchain node metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { dump }, null);
+    }
+}
@@ -0,0 +1,26 @@
+package blockchain.utils;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+// A signature algorithm a chain can be configured with. Implementations work on
+// raw bytes and keep their JCA objects per thread, so they are safe to share.
+
+public interface SignatureScheme {
+
+    String getName();
+
+    // Value of Key.getAlgorithm() for keys of this scheme
+    String getKeyAlgorithm();
+
+    KeyPair generateKeyPair();
+
+    byte[] sign(byte[] data, PrivateKey privateKey);
+
+    // False for a bad signature or a key of another scheme
+    boolean verify(byte[] data, byte[] signature, PublicKey publicKey);
+
+    // Rebuilds a public key from its X.509 encoding
+    PublicKey decodePublicKey(byte[] encoded);
+}
@@ -1,51 +1,61 @@
 package blockchain.utils;
 
-import java.util.*;
-import java.security.*;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 
-// Signature for a block is generated through base64 encoder
+// Available signature schemes. RSA is the default; Ed25519 needs JDK 15 or newer.
+// Verification picks the scheme from the key, so blocks signed under either
+// scheme can be checked.
 public class SignatureUtils {
 
-    // Use of RSA to generate Key-Pair
-    public static KeyPair generateKeyPair() {
-        try {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-            keyGen.initialize(1024);
-            return keyGen.generateKeyPair();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
+    public static final SignatureScheme RSA =
+            new JdkSignatureScheme("RSA", "RSA", "SHA256withRSA", "RSA", 1024);
+    public static final SignatureScheme ED25519 =
+            new JdkSignatureScheme("Ed25519", "EdDSA", "Ed25519", "Ed25519", 0);
+
+    private static final SignatureScheme[] SCHEMES = { RSA, ED25519 };
+
+    public static final int KEY_FINGERPRINT_LENGTH = 32;
+
+    public static SignatureScheme forName(String name) {
+        for (SignatureScheme scheme : SCHEMES) {
+            if (scheme.getName().equalsIgnoreCase(name)) {
+                return scheme;
+            }
         }
+        throw new IllegalArgumentException("Unknown signature scheme " + name);
     }
 
-    // Takes in transaction data and id of the block and returns current
-    // blocks unique signature using SHA 256. Is assigned by hash function
-    // in Transactions file.
-    //
-    public static String generateSignature(String data, PrivateKey privateKey) {
-        String signature = null;
-
-        try {
-            Signature sign = Signature.getInstance("SHA256withRSA");
-            sign.initSign(privateKey);
-            sign.update(data.getBytes("UTF-8"));
-            signature = Base64.getEncoder().encodeToString(sign.sign());
-        } catch (Exception ignored) { }
-
-        return signature;
+    // Scheme owning keys with the given Key.getAlgorithm()
+    public static SignatureScheme forKeyAlgorithm(String keyAlgorithm) {
+        SignatureScheme scheme = lookupKeyAlgorithm(keyAlgorithm);
+        if (scheme == null) {
+            throw new IllegalArgumentException("No signature scheme for " + keyAlgorithm + " keys");
+        }
+        return scheme;
     }
 
-    // Verifies that the signature is unique and  decodes it back.
-    public static boolean verifySignature(String data, String signature, PublicKey publicKey) {
-        boolean verification = false;
+    public static byte[] generateSignature(byte[] data, PrivateKey privateKey) {
+        return forKeyAlgorithm(privateKey.getAlgorithm()).sign(data, privateKey);
+    }
 
-        try {
-            Signature sign = Signature.getInstance("SHA256withRSA");
-            sign.initVerify(publicKey);
-            sign.update(data.getBytes("UTF-8"));
-            verification = sign.verify(Base64.getDecoder().decode(signature));
-        } catch (Exception ignored) { }
+    public static boolean verifySignature(byte[] data, byte[] signature, PublicKey publicKey) {
+        SignatureScheme scheme = lookupKeyAlgorithm(publicKey.getAlgorithm());
+        return scheme != null && scheme.verify(data, signature, publicKey);
+    }
+
+    // Fixed size stand-in for a public key inside signed data: SHA-256 of its X.509 encoding
+    public static byte[] keyFingerprint(PublicKey publicKey) {
+        return StringUtils.sha256(publicKey.getEncoded());
+    }
 
-        return verification;
+    private static SignatureScheme lookupKeyAlgorithm(String keyAlgorithm) {
+        for (SignatureScheme scheme : SCHEMES) {
+            if (scheme.getKeyAlgorithm().equals(keyAlgorithm)) {
+                return scheme;
+            }
+        }
+        return null;
     }
-}
\ No newline at end of file
+}
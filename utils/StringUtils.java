@@ -13,22 +13,46 @@ public class StringUtils {
 
             byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
 
-            StringBuilder hexString = new StringBuilder();
+            return bytesToHex(hash);
 
-            for (byte elem : hash) {
-                String hex = Integer.toHexString(0xff & elem);
-                if (hex.length() == 1)
-                    hexString.append('0');
-                hexString.append(hex);
-            }
-
-            return hexString.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    public static byte[] sha256(byte[] input) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(input);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    public static String bytesToHex(byte[] bytes) {
+        StringBuilder hexString = new StringBuilder(bytes.length * 2);
+
+        for (byte elem : bytes) {
+            String hex = Integer.toHexString(0xff & elem);
+            if (hex.length() == 1)
+                hexString.append('0');
+            hexString.append(hex);
+        }
+
+        return hexString.toString();
+    }
+
+    // Decodes a hex string right-aligned into a fixed size buffer; "0" gives all zeros
+    public static byte[] hexToBytes(String hex, int length) {
+        byte[] bytes = new byte[length];
+        int pos = length - 1;
+        for (int i = hex.length(); i > 0 && pos >= 0; i -= 2, pos--) {
+            int lo = Character.digit(hex.charAt(i - 1), 16);
+            int hi = i >= 2 ? Character.digit(hex.charAt(i - 2), 16) : 0;
+            bytes[pos] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
     public static String randomAlphaString(int length) {
         String alpha = "abcdefg hijklmn opqrst uvwxyz ABCDEFG HIJKLMN OPQRST UVWXYZ";
         Random random = new Random();
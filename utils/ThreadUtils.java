@@ -0,0 +1,19 @@
+package blockchain.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+// Thread factories that depend on the running JDK. The sources target Java 11,
+// so virtual threads (Java 21) are looked up reflectively.
+public class ThreadUtils {
+
+    // One virtual thread per task, or null when the JDK has no virtual threads
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}